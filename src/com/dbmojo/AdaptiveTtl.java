@@ -0,0 +1,164 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONException;
+
+/** Learn read cache TTLs per table from the writes DBMojo sees&#46; <br><br>
+ *  Every successful update set records a write against each table it 
+ *  touches&#46; The time between writes is tracked as an exponentially 
+ *  weighted moving average and a query set is cached for <b>factor</b> times
+ *  the expected time until the next write to any table it reads, bounded by
+ *  <b>minTtl</b> and <b>maxTtl</b> seconds&#46; Tables that haven't been written
+ *  since the server started are treated as if their last write was at 
+ *  startup, so they drift towards <b>maxTtl</b>&#46; A query set whose tables
+ *  can't be found is cached for <b>minTtl</b>&#46;
+ */
+public class AdaptiveTtl {
+  
+  private final static double alpha = 0.2;
+  
+  private static class TableStats {
+    long   lastWrite, writes;
+    double interval;
+    
+    TableStats(long lastWrite) {
+      this.lastWrite = lastWrite;
+    }
+  }
+
+  private int                                   minTtl, maxTtl;
+  private double                                factor;
+  private long                                  started;
+  private ConcurrentHashMap<String, TableStats> tables;
+  
+  public AdaptiveTtl(int minTtl, int maxTtl, double factor) {
+    this.minTtl  = minTtl;
+    this.maxTtl  = maxTtl;
+    this.factor  = factor;
+    this.started = System.currentTimeMillis();
+    this.tables  = new ConcurrentHashMap<String, TableStats>();
+  }
+  
+  /** Record a write to every table touched by the update set <b>reqs</b> */
+  public void recordWrites(String alias, JSONArray reqs) throws JSONException {
+    final long now = System.currentTimeMillis();
+    
+    for(int r=0; r < reqs.length(); r++) {
+      final String query = MacroCache.resolve(
+                             reqs.getJSONObject(r).optString("query"));
+      final String table = query != null ? SqlUtil.getWriteTable(query) : null;
+      if(table == null) {
+        continue;
+      }
+      
+      final TableStats stats = getStats(alias + ":" + table);
+      synchronized(stats) {
+        final long gap = Math.max(0, now - stats.lastWrite);
+        stats.interval  = stats.writes == 0 ? 
+                          gap : (alpha * gap) + ((1 - alpha) * stats.interval);
+        stats.lastWrite = now;
+        stats.writes++;
+      }
+    }
+  }
+  
+  /** Return the learned TTL (seconds) for the query set <b>reqs</b>&#46; This
+   *  is the smallest TTL of every table it reads, or <b>minTtl</b> if no 
+   *  table could be found in any of its queries&#46; */
+  public int getTtl(String alias, JSONArray reqs) throws JSONException {
+    int     ttl   = this.maxTtl;
+    boolean found = false;
+    
+    for(int r=0; r < reqs.length(); r++) {
+      final String query = MacroCache.resolve(
+                             reqs.getJSONObject(r).optString("query"));
+      if(query == null) {
+        continue;
+      }
+      
+      for(String table : SqlUtil.getReadTables(query)) {
+        //Don't create stats on the read path, a table that was never 
+        //written is treated as if it was last written at startup
+        final TableStats stats = this.tables.get(alias + ":" + table);
+        ttl   = Math.min(ttl, stats != null ? getTableTtl(stats) :
+                                getTableTtl(this.started, 0, 0));
+        found = true;
+      }
+    }
+    
+    return found ? ttl : this.minTtl;
+  }
+  
+  private int getTableTtl(TableStats stats) {
+    synchronized(stats) {
+      return getTableTtl(stats.lastWrite, stats.writes, stats.interval);
+    }
+  }
+  
+  private int getTableTtl(long lastWrite, long writes, double interval) {
+    //A table that has gone quiet for longer than its usual write interval
+    //is expected to stay quiet at least that long again
+    final long   quiet    = System.currentTimeMillis() - lastWrite;
+    final double expected = writes == 0 ? quiet : Math.max(interval, quiet);
+    final long   ttl      = (long)(expected * this.factor / 1000);
+    
+    return (int)Math.max(this.minTtl, Math.min(this.maxTtl, ttl));
+  }
+  
+  private TableStats getStats(String key) {
+    TableStats stats = this.tables.get(key);
+    if(stats == null) {
+      final TableStats tStats = new TableStats(this.started);
+      stats = this.tables.putIfAbsent(key, tStats);
+      if(stats == null) {
+        stats = tStats;
+      }
+    }
+    return stats;
+  }
+  
+  /** The learned TTL of every table written so far for the admin 
+   *  endpoint */
+  public JSONArray getStatus() throws JSONException {
+    JSONArray status = new JSONArray();
+    for(Map.Entry<String, TableStats> e : this.tables.entrySet()) {
+      final String     key   = e.getKey();
+      final TableStats stats = e.getValue();
+      final int        sep   = key.lastIndexOf(':');
+      JSONObject       tObj  = new JSONObject();
+      
+      tObj.put("alias", key.substring(0, sep));
+      tObj.put("table", key.substring(sep + 1));
+      tObj.put("ttl",   getTableTtl(stats));
+      synchronized(stats) {
+        tObj.put("writes",        stats.writes);
+        tObj.put("lastWrite",     stats.writes > 0 ? stats.lastWrite : 0);
+        tObj.put("writeInterval", (long)stats.interval);
+      }
+      status.put(tObj);
+    }
+    return status;
+  }
+}
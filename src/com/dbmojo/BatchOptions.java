@@ -0,0 +1,86 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.json.JSONObject;
+
+/** Per alias settings for how update sets are batched&#46; Read from the 
+ *  alias' entry in <i>dbAliases</i> or <i>clusters</i>:<br><br>
+ *  <i>{alias: "mysql", ..., batchSize: 500, rewriteBatchedInserts: true,
+ *  maxBindVariables: 2000, batchGeneratedKeys: true}</i>
+ */
+public class BatchOptions {
+  
+  private int     batchSize        = 1000;
+  private boolean rewriteInserts   = false;
+  private int     maxBindVariables = 999;
+  private boolean batchKeys        = false;
+  
+  /** Defaults: batches are executed every 1000 rows and inserts are not
+   *  rewritten */
+  public BatchOptions() {
+  }
+  
+  /** Read the settings in <b>config</b>, falling back to <b>defaults</b> for
+   *  anything it does not set */
+  public BatchOptions(JSONObject config, BatchOptions defaults) 
+                      throws Exception {
+    this.batchSize        = config.optInt("batchSize", defaults.batchSize);
+    this.rewriteInserts   = config.optBoolean("rewriteBatchedInserts", 
+                                              defaults.rewriteInserts);
+    this.maxBindVariables = config.optInt("maxBindVariables", 
+                                          defaults.maxBindVariables);
+    this.batchKeys        = config.optBoolean("batchGeneratedKeys",
+                                              defaults.batchKeys);
+    
+    if(this.batchSize <= 0) {
+      throw new Exception("'batchSize' for '" + config.optString("alias") + 
+                          "' must be greater than 0");
+    }
+    
+    if(this.maxBindVariables <= 0) {
+      throw new Exception("'maxBindVariables' for '" + 
+                          config.optString("alias") + 
+                          "' must be greater than 0");
+    }
+  }
+  
+  /** Execute a batch once it holds this many rows */
+  public int getBatchSize() {
+    return this.batchSize;
+  }
+  
+  /** Should batched single row prepared INSERTs be combined into multi row
+   *  INSERTs (see BatchPlanner)? */
+  public boolean isRewriteInserts() {
+    return this.rewriteInserts;
+  }
+  
+  /** The most bind variables a rewritten INSERT may use */
+  public int getMaxBindVariables() {
+    return this.maxBindVariables;
+  }
+  
+  /** Does the driver return a generated key for every row of a batch? If 
+   *  not, statements asking for their keys are executed one at a time */
+  public boolean isBatchGeneratedKeys() {
+    return this.batchKeys;
+  }
+}
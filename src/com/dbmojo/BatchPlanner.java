@@ -0,0 +1,478 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/** Plans the execution of the updates in an update set&#46; <br><br>
+ *  Only consecutive statements are batched together: a run of raw SQL 
+ *  shares one Statement batch and a run of the same prepared SQL shares one
+ *  PreparedStatement batch&#46; A different statement (or a read, see 
+ *  flush()) executes whatever has been gathered first, so updates always 
+ *  reach the database in the order they were sent&#46; Batches are also 
+ *  executed every <i>batchSize</i> rows&#46; <br><br>
+ *  With <i>rewriteBatchedInserts</i> a run of a simple single row prepared
+ *  INSERT is sent as multi row <i>INSERT &#46;&#46;&#46; VALUES (?,?), 
+ *  (?,?)&#46;&#46;&#46;</i> statements instead, with as many rows per 
+ *  statement as <i>maxBindVariables</i> allows, since many drivers make a 
+ *  round trip for every row of a batch&#46; <br><br>
+ *  The update count of every statement is kept, -1 for statements that
+ *  are not updates&#46; Statements sent with <i>returnKeys</i> also keep 
+ *  the keys the database generated for them, as rows led by the index of
+ *  the statement&#46; They are never rewritten, and only batched if the 
+ *  alias is set to <i>batchGeneratedKeys</i>&#46; <br><br>
+ *  When errors are skipped every statement or batch runs behind a 
+ *  savepoint&#46; A failed batch is rolled back to it and retried one 
+ *  statement at a time, and statements that still fail are rolled back 
+ *  on their own and reported by index instead of failing the set&#46;
+ */
+class BatchPlanner {
+  
+  private Connection         conn;
+  private BatchOptions       options;
+  private boolean            batching;
+  private int[]              counts;
+  
+  //The run currently being gathered
+  private boolean            gathering;
+  private boolean            batchPrepared;
+  private boolean            batchKeys;
+  private Statement          batch;
+  private String             batchSql;
+  private ArrayList<Integer> batchIdx = new ArrayList<Integer>();
+  
+  //Rows of a run of INSERTs being rewritten. insert holds the statement 
+  //split at VALUES
+  private String[]           insert;
+  private ArrayList<String[]> rows    = new ArrayList<String[]>();
+  
+  //Generated keys of statements sent with returnKeys
+  private ArrayList<ArrayList<String>> keys     = 
+    new ArrayList<ArrayList<String>>();
+  private ArrayList<String>            keyCols  = new ArrayList<String>();
+  private ArrayList<String>            keyTypes = new ArrayList<String>();
+  
+  //With skipErrors the statements of the batch being gathered are kept so
+  //they can be retried one at a time
+  private boolean                  skipErrors;
+  private ArrayList<String>        pendingSql    = new ArrayList<String>();
+  private ArrayList<String[]>      pendingValues = new ArrayList<String[]>();
+  private TreeMap<Integer, String> failures      = 
+    new TreeMap<Integer, String>();
+  
+  /** Plan the updates of a set of <b>statements</b> statements&#46; Sets of
+   *  a single statement are executed directly rather than batched */
+  BatchPlanner(Connection conn, int statements, BatchOptions options) {
+    this.conn     = conn;
+    this.options  = options;
+    this.batching = statements > 1;
+    this.counts   = new int[statements];
+    Arrays.fill(this.counts, -1);
+  }
+  
+  /** Add the update at index <b>idx</b> of the set. <b>values</b> is null
+   *  for raw SQL */
+  void add(int idx, String query, String[] values) throws Exception {
+    add(idx, query, values, false);
+  }
+  
+  /** Same as above, keeping the generated keys if <b>returnKeys</b> is 
+   *  set */
+  void add(int idx, String query, String[] values, 
+           boolean returnKeys) throws Exception {
+    if(!this.batching || 
+       (returnKeys && 
+        (values == null || !this.options.isBatchGeneratedKeys()))) {
+      flush();
+      executeOne(idx, query, values, returnKeys);
+      return;
+    }
+    
+    //Raw SQL can share a batch with any raw SQL, prepared statements only 
+    //with the same SQL
+    final String sql = values != null ? query : null;
+    if(this.gathering && 
+       (this.batchPrepared != (values != null) ||
+        this.batchKeys != returnKeys ||
+        (sql != null && !sql.equals(this.batchSql)))) {
+      flush();
+    }
+    
+    if(!this.gathering) {
+      if(DebugLog.enabled) {
+        DebugLog.add(this, "Starting batch for query '" + query + "'");
+      }
+      this.gathering     = true;
+      this.batchPrepared = values != null;
+      this.batchKeys     = returnKeys;
+      this.batchSql      = sql;
+      this.insert        = values != null && !returnKeys &&
+                           this.options.isRewriteInserts() ?
+                           SqlUtil.splitInsert(query) : null;
+      if(this.insert == null && returnKeys) {
+        this.batch = this.conn.prepareStatement(
+                       query, Statement.RETURN_GENERATED_KEYS);
+      } else if(this.insert == null) {
+        this.batch = values != null ? this.conn.prepareStatement(query) : 
+                                      this.conn.createStatement();
+      }
+    }
+    
+    if(this.insert != null) {
+      this.rows.add(values);
+    } else if(values != null) {
+      final PreparedStatement pstmt = (PreparedStatement)this.batch;
+      try {
+        QueryExecutor.setPreparedStatementValues(pstmt, values);
+      } catch(Exception e) {
+        if(!this.skipErrors) {
+          throw e;
+        }
+        pstmt.clearParameters();
+        fail(idx, e.toString());
+        return;
+      }
+      pstmt.addBatch();
+    } else {
+      this.batch.addBatch(query);
+    }
+    this.batchIdx.add(idx);
+    if(this.skipErrors) {
+      this.pendingSql.add(query);
+      this.pendingValues.add(values);
+    }
+    
+    if(this.batchIdx.size() >= this.options.getBatchSize()) {
+      executeBatch();
+    }
+  }
+  
+  /** Execute and close the batch being gathered, if any */
+  void flush() throws Exception {
+    if(!this.gathering) {
+      return;
+    }
+    
+    try {
+      executeBatch();
+    } finally {
+      close();
+    }
+  }
+  
+  /** Close the batch being gathered without executing it */
+  void close() {
+    if(this.batch != null) {
+      try {
+        this.batch.close();
+        if(DebugLog.enabled) {
+          DebugLog.add(this, "Closing batch statement");
+        }
+      } catch(SQLException se) {
+        if(ErrorLog.enabled) {
+          ErrorLog.add(this, "Error closing batch statement - " + se, false);
+        }
+      }
+    }
+    this.gathering = false;
+    this.batch     = null;
+    this.batchSql  = null;
+    this.insert    = null;
+    this.batchIdx.clear();
+    this.rows.clear();
+    this.pendingSql.clear();
+    this.pendingValues.clear();
+  }
+  
+  /** Roll back failed statements on their own and carry on, rather than 
+   *  throwing */
+  void setSkipErrors(boolean skipErrors) {
+    this.skipErrors = skipErrors;
+  }
+  
+  /** Record that the statement at index <b>idx</b> failed and was 
+   *  skipped */
+  void fail(int idx, String message) {
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Skipping statement " + idx + " - " + message);
+    }
+    this.counts[idx] = Statement.EXECUTE_FAILED;
+    this.failures.put(idx, message);
+  }
+  
+  /** The error of every skipped statement, by statement index */
+  TreeMap<Integer, String> getFailures() {
+    return this.failures;
+  }
+  
+  /** Update counts so far, by statement index */
+  int[] getCounts() {
+    return this.counts;
+  }
+  
+  /** Generated keys so far, one row per key led by the statement index */
+  ArrayList<ArrayList<String>> getKeys() {
+    return this.keys;
+  }
+  
+  /** STATEMENT followed by the key columns */
+  ArrayList<String> getKeyCols() {
+    return this.keyCols;
+  }
+  
+  ArrayList<String> getKeyTypes() {
+    return this.keyTypes;
+  }
+  
+  //Run the rows gathered so far. The statement stays open for more rows
+  private void executeBatch() throws Exception {
+    if(this.batchIdx.isEmpty()) {
+      return;
+    } else if(!this.skipErrors) {
+      runBatch();
+      return;
+    }
+    
+    final Savepoint savepoint = this.conn.setSavepoint();
+    try {
+      runBatch();
+      this.conn.releaseSavepoint(savepoint);
+    } catch(Exception e) {
+      this.conn.rollback(savepoint);
+      if(DebugLog.enabled) {
+        DebugLog.add(this, "Retrying batch one statement at a time - " + e);
+      }
+      
+      if(this.batch != null) {
+        this.batch.clearBatch();
+      }
+      for(int i=0; i < this.batchIdx.size(); i++) {
+        executeOne(this.batchIdx.get(i), this.pendingSql.get(i),
+                   this.pendingValues.get(i), this.batchKeys);
+      }
+      this.batchIdx.clear();
+      this.rows.clear();
+    } finally {
+      this.pendingSql.clear();
+      this.pendingValues.clear();
+    }
+  }
+  
+  private void runBatch() throws Exception {
+    if(this.insert != null) {
+      executeRewritten();
+      return;
+    }
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Executing batch of " + this.batchIdx.size());
+    }
+    
+    final int[] tCounts = this.batch.executeBatch();
+    for(int i=0; i < tCounts.length && i < this.batchIdx.size(); i++) {
+      this.counts[this.batchIdx.get(i)] = tCounts[i];
+    }
+    
+    //The keys can only be matched to their statements if every row 
+    //generated exactly one
+    if(this.batchKeys) {
+      final ArrayList<ArrayList<String>> tKeys = 
+        new ArrayList<ArrayList<String>>();
+      readKeys(this.batch, -1, tKeys);
+      if(tKeys.size() == this.batchIdx.size()) {
+        for(int i=0; i < tKeys.size(); i++) {
+          tKeys.get(i).set(0, this.batchIdx.get(i) + "");
+        }
+        this.keys.addAll(tKeys);
+      } else if(ErrorLog.enabled) {
+        ErrorLog.add(this, "Got " + tKeys.size() + " generated keys for a " +
+                           "batch of " + this.batchIdx.size() + " rows. " +
+                           "batchGeneratedKeys should be turned off", false);
+      }
+    }
+    this.batchIdx.clear();
+  }
+  
+  //Run the rows gathered so far as multi row INSERTs of as many rows as the
+  //bind variable limit allows, and a last one for whatever is left over
+  private void executeRewritten() throws Exception {
+    final int binds   = Math.max(1, this.rows.get(0).length);
+    final int perStmt = Math.max(1, Math.min(this.options.getBatchSize(),
+                                  this.options.getMaxBindVariables() / binds));
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Executing " + this.rows.size() + 
+                         " rows as inserts of up to " + perStmt + " rows");
+    }
+    
+    PreparedStatement full = null;
+    try {
+      for(int done=0; done < this.rows.size(); ) {
+        final int n = Math.min(perStmt, this.rows.size() - done);
+        
+        //Every full size statement reuses the same PreparedStatement
+        PreparedStatement pstmt;
+        if(n == perStmt) {
+          if(full == null) {
+            full = this.conn.prepareStatement(getMultiRowInsert(n));
+          }
+          pstmt = full;
+        } else {
+          pstmt = this.conn.prepareStatement(getMultiRowInsert(n));
+        }
+        
+        try {
+          int offset = 0;
+          for(int r=done; r < done + n; r++) {
+            QueryExecutor.setPreparedStatementValues(pstmt, this.rows.get(r),
+                                                     offset);
+            offset += this.rows.get(r).length;
+          }
+          
+          //Only a total comes back, so the rows can only be credited with 
+          //one each if it adds up
+          final int total = pstmt.executeUpdate();
+          for(int r=done; r < done + n; r++) {
+            this.counts[this.batchIdx.get(r)] = total == n ? 
+                                                1 : Statement.SUCCESS_NO_INFO;
+          }
+        } finally {
+          if(pstmt != full) {
+            pstmt.close();
+          }
+        }
+        
+        done += n;
+      }
+    } finally {
+      if(full != null) {
+        full.close();
+      }
+    }
+    
+    this.batchIdx.clear();
+    this.rows.clear();
+  }
+  
+  private String getMultiRowInsert(int n) {
+    StringBuilder sql = new StringBuilder(this.insert[0]).append(" VALUES ");
+    for(int r=0; r < n; r++) {
+      sql.append(r > 0 ? ", " : "").append(this.insert[1]);
+    }
+    return sql.toString();
+  }
+  
+  //Execute a single update, behind its own savepoint if errors are skipped
+  private void executeOne(int idx, String query, String[] values,
+                          boolean returnKeys) throws Exception {
+    if(!this.skipErrors) {
+      this.counts[idx] = executeUpdate(idx, query, values, returnKeys);
+      return;
+    }
+    
+    final Savepoint savepoint = this.conn.setSavepoint();
+    try {
+      this.counts[idx] = executeUpdate(idx, query, values, returnKeys);
+      this.conn.releaseSavepoint(savepoint);
+    } catch(Exception e) {
+      this.conn.rollback(savepoint);
+      fail(idx, e.toString());
+    }
+  }
+  
+  //Execute a single update. This handles both a raw query and a prepared
+  //statement
+  private int executeUpdate(int idx, String query, String[] values,
+                            boolean returnKeys) throws Exception {
+    final int autoKeys = returnKeys ? Statement.RETURN_GENERATED_KEYS :
+                                      Statement.NO_GENERATED_KEYS;
+    if(values == null) {
+      if(DebugLog.enabled) 
+        DebugLog.add(this,"This is a single statement update"); 
+      final Statement stmt = this.conn.createStatement();
+      try {
+        final int count = stmt.executeUpdate(query, autoKeys);
+        if(returnKeys) {
+          readKeys(stmt, idx, this.keys);
+        }
+        return count;
+      } finally {
+        stmt.close();
+      }
+    } else {
+      if(DebugLog.enabled) 
+        DebugLog.add(this,"This is a single prepared statement update");
+      final PreparedStatement pstmt = this.conn.prepareStatement(query, 
+                                                                 autoKeys); 
+      try {
+        QueryExecutor.setPreparedStatementValues(pstmt, values);
+        final int count = pstmt.executeUpdate();
+        if(returnKeys) {
+          readKeys(pstmt, idx, this.keys);
+        }
+        return count;
+      } finally {
+        pstmt.close();
+      }
+    }
+  }
+  
+  //Add a row led by idx to rows for every key stmt generated
+  private void readKeys(Statement stmt, int idx, 
+                        ArrayList<ArrayList<String>> rows) throws Exception {
+    final ResultSet rset = stmt.getGeneratedKeys();
+    if(rset == null) {
+      return;
+    }
+    
+    try {
+      final ResultSetMetaData meta    = rset.getMetaData();
+      final int               numCols = meta.getColumnCount();
+      if(this.keyCols.isEmpty()) {
+        this.keyCols.add("STATEMENT");
+        this.keyTypes.add("INTEGER");
+        for(int i=1; i <= numCols; i++) {
+          this.keyCols.add(meta.getColumnName(i));
+          this.keyTypes.add(meta.getColumnTypeName(i));
+        }
+      }
+      
+      while(rset.next()) {
+        final ArrayList<String> row = new ArrayList<String>();
+        row.add(idx + "");
+        for(int i=1; i <= numCols; i++) {
+          row.add(rset.getString(i));
+        }
+        rows.add(row);
+      }
+    } finally {
+      rset.close();
+    }
+  }
+}
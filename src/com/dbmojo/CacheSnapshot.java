@@ -0,0 +1,201 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Persist the contents of a CacheStore to a memory-mapped snapshot file
+ *  and map it back in at startup so a restarted server doesn't start 
+ *  cold&#46; <br><br>
+ *  Each snapshot is stamped with a <b>version</b>, normally derived from
+ *  the server config, and a snapshot written under a different version (or
+ *  a different file format) is discarded instead of loaded&#46; Entries keep
+ *  their absolute expiration time so they come back with whatever TTL they
+ *  had left&#46;
+ */
+public class CacheSnapshot {
+
+  private static final int MAGIC          = 0x444D4A43;
+  private static final int FORMAT_VERSION = 1;
+  
+  private String path, version;
+
+  public CacheSnapshot(String path, String version) {
+    this.path    = path;
+    this.version = version;
+  }
+  
+  /** Write every live entry in <b>store</b> to the snapshot file&#46; The
+   *  snapshot is written to a temporary file first and then renamed over
+   *  the previous one&#46;
+   */
+  public synchronized void save(CacheStore store) throws IOException {
+    final byte[] versionBytes = this.version.getBytes("UTF-8");
+    
+    //First pass just sizes the file
+    final long[] size = new long[] {4 + 4 + 4 + versionBytes.length + 8 + 4};
+    store.forEach(new CacheStore.Visitor() {
+      public void visit(String key, ByteBuffer value, long expires) {
+        size[0] += 4 + utf8(key).length + 8 + 4 + value.remaining();
+      }
+    });
+    
+    if(size[0] > Integer.MAX_VALUE) {
+      throw new IOException("Cache snapshot would exceed 2GB");
+    }
+    
+    final File             tmpFile = new File(this.path + ".tmp");
+    final RandomAccessFile raf     = new RandomAccessFile(tmpFile, "rw");
+    final int[]            count   = new int[1];
+    
+    try {
+      raf.setLength(size[0]);
+      final MappedByteBuffer out = 
+        raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size[0]);
+      
+      out.putInt(MAGIC);
+      out.putInt(FORMAT_VERSION);
+      out.putInt(versionBytes.length);
+      out.put(versionBytes);
+      out.putLong(System.currentTimeMillis());
+      final int countPos = out.position();
+      out.putInt(0);
+      
+      //Second pass writes the entries. Anything added since the first pass
+      //that no longer fits is skipped.
+      store.forEach(new CacheStore.Visitor() {
+        public void visit(String key, ByteBuffer value, long expires) {
+          final byte[] keyBytes = utf8(key);
+          if(out.remaining() < 4 + keyBytes.length + 8 + 4 + value.remaining()) {
+            return;
+          }
+          out.putInt(keyBytes.length);
+          out.put(keyBytes);
+          out.putLong(expires);
+          out.putInt(value.remaining());
+          out.put(value.duplicate());
+          count[0]++;
+        }
+      });
+      
+      out.putInt(countPos, count[0]);
+      out.force();
+    } finally {
+      raf.close();
+    }
+    
+    final File snapshotFile = new File(this.path);
+    if(!tmpFile.renameTo(snapshotFile)) {
+      snapshotFile.delete();
+      if(!tmpFile.renameTo(snapshotFile)) {
+        throw new IOException("Cache snapshot could not be renamed to '" + 
+                              this.path + "'");
+      }
+    }
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, count[0] + " cache entries saved to '" + 
+                         this.path + "'");
+    }
+  }
+  
+  /** Map the snapshot file back in and load every entry that has not yet 
+   *  expired into <b>store</b>&#46; Returns the number of entries loaded&#46;
+   *  Missing, corrupt or incompatible snapshots load nothing&#46;
+   */
+  public synchronized int load(CacheStore store) throws IOException {
+    final File snapshotFile = new File(this.path);
+    if(!snapshotFile.exists()) {
+      return 0;
+    }
+    
+    final RandomAccessFile raf    = new RandomAccessFile(snapshotFile, "r");
+    int                    loaded = 0;
+    
+    try {
+      final MappedByteBuffer in = 
+        raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      
+      if(in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+        discard("unknown snapshot format");
+        return 0;
+      }
+      
+      final byte[] versionBytes = new byte[in.getInt()];
+      in.get(versionBytes);
+      if(!new String(versionBytes, "UTF-8").equals(this.version)) {
+        discard("snapshot was written for a different config version");
+        return 0;
+      }
+      
+      final long savedAt = in.getLong();
+      final int  count   = in.getInt();
+      final long now     = System.currentTimeMillis();
+      
+      for(int e=0; e < count; e++) {
+        final byte[] keyBytes = new byte[in.getInt()];
+        in.get(keyBytes);
+        final long   expires  = in.getLong();
+        final byte[] value    = new byte[in.getInt()];
+        in.get(value);
+        
+        if(expires > now && store.put(new String(keyBytes, "UTF-8"), value, 
+                                      expires)) {
+          loaded++;
+        }
+      }
+      
+      if(DebugLog.enabled) {
+        DebugLog.add(this, loaded + " cache entries loaded from '" + 
+                           this.path + "' saved " + 
+                           ((now - savedAt) / 1000) + " seconds ago");
+      }
+    } catch(BufferUnderflowException bue) {
+      discard("snapshot is truncated");
+    } catch(NegativeArraySizeException nae) {
+      discard("snapshot is corrupt");
+    } finally {
+      raf.close();
+    }
+    
+    return loaded;
+  }
+  
+  private void discard(String reason) {
+    if(ErrorLog.enabled) {
+      ErrorLog.add(this, "Discarding cache snapshot '" + this.path + "', " + 
+                         reason, false);
+    }
+  }
+  
+  private static byte[] utf8(String str) {
+    try {
+      return str.getBytes("UTF-8");
+    } catch(java.io.UnsupportedEncodingException uee) {
+      return str.getBytes();
+    }
+  }
+}
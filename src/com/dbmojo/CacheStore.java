@@ -0,0 +1,61 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.nio.ByteBuffer;
+
+/** Storage engine behind the ResponseCache&#46; A store only ever deals in
+ *  already serialized entries, it never holds the objects they were built 
+ *  from&#46;
+ */
+public interface CacheStore {
+
+  /** Callback used to walk every live entry in a store */
+  public interface Visitor {
+    public void visit(String key, ByteBuffer value, long expires);
+  }
+
+  /** A live entry handed out without copying it&#46; The store won't reuse
+   *  the memory behind it until it is released */
+  public interface Lease {
+    /** Read-only view of the stored bytes */
+    public ByteBuffer getValue();
+    public long       getExpires();
+    public void       release();
+  }
+
+  /** Return a copy of the bytes stored for <b>key</b> or null if the entry
+   *  is missing, expired or has been evicted&#46; */
+  public ByteBuffer get(String key);
+  
+  /** Same as get() but without copying the bytes&#46; The lease has to be 
+   *  released once the bytes are no longer needed&#46; */
+  public Lease      lease(String key);
+  
+  /** Store <b>value</b> until the <b>expires</b> timestamp (millis)&#46;
+   *  Returns false if the value could not be stored&#46; */
+  public boolean    put(String key, byte[] value, long expires);
+  public void       remove(String key);
+  
+  /** Call <b>visitor</b> once for each entry that has not expired */
+  public void       forEach(Visitor visitor);
+  public void       clear();
+  public int        size();
+}
@@ -0,0 +1,194 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A member pool of a JDBCClusteredConnectionPool along with the load 
+ *  statistics used to balance reads across the cluster&#46; Latency is the
+ *  time a connection is held between checkOut() and checkIn() and is kept
+ *  as an exponentially weighted moving average&#46; <br><br>
+ *  Each member also has a circuit breaker&#46; After too many consecutive 
+ *  failed checkouts the circuit opens and the member is taken out of 
+ *  rotation until a background probe succeeds&#46; <br><br>
+ *  Replicas with a lag query also track the point in time their data is
+ *  known to be current as of, so reads that must see a given write can be 
+ *  routed to them&#46;
+ */
+public class ClusterMember {
+  
+  private final static double alpha = 0.3;
+  
+  //Lag queries usually report whole seconds, so a lag of 0 can mean up to
+  //a second behind
+  private final static long   lagResolution = 1000;
+  
+  private final String         alias;
+  private final ConnectionPool pool;
+  private final AtomicInteger  inFlight;
+  private final long[]         samples;
+  private final AtomicInteger  sampleIdx;
+  private volatile double      latency;
+  private final AtomicInteger  failures;
+  private volatile boolean     open;
+  private int                  maxConcurrency;
+  private String               lagQuery;
+  private volatile long        caughtUpTo;
+  
+  public ClusterMember(ConnectionPool pool) {
+    this.pool     = pool;
+    this.alias    = pool.getAlias();
+    this.inFlight  = new AtomicInteger();
+    this.samples   = new long[128];
+    this.sampleIdx = new AtomicInteger();
+    this.latency  = 1;
+    this.failures = new AtomicInteger();
+  }
+  
+  /** Record a failed checkout, opening the circuit once <b>threshold</b>
+   *  consecutive failures have been seen. Returns true if this failure 
+   *  opened the circuit */
+  public boolean failed(int threshold) {
+    if(this.failures.incrementAndGet() >= threshold && !this.open) {
+      this.open = true;
+      return true;
+    }
+    return false;
+  }
+  
+  /** Record a successful checkout */
+  public void succeeded() {
+    if(this.failures.get() != 0) {
+      this.failures.set(0);
+    }
+  }
+  
+  /** Close the circuit and put the member back into rotation */
+  public void reset() {
+    this.failures.set(0);
+    this.open = false;
+  }
+  
+  /** Is this member in rotation? */
+  public boolean isAvailable() {
+    return !this.open;
+  }
+  
+  /** Reserve a slot for a connection about to be checked out of this 
+   *  member&#46; Returns false, without reserving anything, if the member is 
+   *  already running <b>maxConcurrency</b> reads&#46; A reserved slot is given
+   *  back by checkedIn() or by release() if the checkout fails&#46; */
+  public boolean tryAcquire() {
+    while(true) {
+      final int current = this.inFlight.get();
+      if(this.maxConcurrency > 0 && current >= this.maxConcurrency) {
+        return false;
+      }
+      if(this.inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+  
+  /** Give back a slot reserved by tryAcquire() without a checkout */
+  public void release() {
+    this.inFlight.decrementAndGet();
+  }
+  
+  /** Record a connection being returned after <b>millis</b> */
+  public void checkedIn(long millis) {
+    this.inFlight.decrementAndGet();
+    this.samples[(this.sampleIdx.getAndIncrement() & Integer.MAX_VALUE) % 
+                 this.samples.length] = millis;
+    //Racy on purpose, a lost sample now and then doesn't matter
+    this.latency = (alpha * Math.max(millis, 1)) + ((1 - alpha) * this.latency);
+  }
+  
+  /** Limit the number of reads in flight against this member, 0 means
+   *  no limit */
+  public void setMaxConcurrency(int maxConcurrency) {
+    this.maxConcurrency = maxConcurrency;
+  }
+  
+  /** Is this member already running as many reads as it is allowed to? 
+   *  Only a hint for picking members, tryAcquire() enforces the cap */
+  public boolean isAtCapacity() {
+    return this.maxConcurrency > 0 && this.inFlight.get() >= this.maxConcurrency;
+  }
+  
+  /** A query returning the replication lag of this member in seconds */
+  public void setLagQuery(String lagQuery) {
+    this.lagQuery = lagQuery;
+  }
+  
+  public String getLagQuery() {
+    return this.lagQuery;
+  }
+  
+  /** Record that, as measured at <b>checkedAt</b>, this member was
+   *  <b>lagMillis</b> behind its master&#46; One second is taken off on top
+   *  of the lag since that is all the precision most lag queries have */
+  public void setLag(long lagMillis, long checkedAt) {
+    this.caughtUpTo = checkedAt - Math.max(0, lagMillis) - lagResolution;
+  }
+  
+  /** Has this member applied every write committed up to <b>timestamp</b>? */
+  public boolean isCaughtUp(long timestamp) {
+    return this.caughtUpTo >= timestamp;
+  }
+  
+  /** Lower is better. Expected wait if we add one more request */
+  public double getScore() {
+    return (this.inFlight.get() + 1) * this.latency;
+  }
+  
+  /** The <b>pct</b> percentile of the last 128 latency samples (millis).
+   *  Until enough samples are in twice the average latency is used. */
+  public long getLatencyPercentile(int pct) {
+    final int count = Math.min(this.sampleIdx.get() & Integer.MAX_VALUE, 
+                               this.samples.length);
+    if(count < 20) {
+      return (long)Math.ceil(this.latency * 2);
+    }
+    
+    long[] sorted = new long[count];
+    System.arraycopy(this.samples, 0, sorted, 0, count);
+    Arrays.sort(sorted);
+    return sorted[Math.min(count - 1, (count * pct) / 100)];
+  }
+  
+  public int getInFlight() {
+    return this.inFlight.get();
+  }
+  
+  /** EWMA of the time (ms) connections are held */
+  public double getLatency() {
+    return this.latency;
+  }
+  
+  public String getAlias() {
+    return this.alias;
+  }
+  
+  public ConnectionPool getPool() {
+    return this.pool;
+  }
+}
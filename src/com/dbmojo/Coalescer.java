@@ -0,0 +1,266 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/** Write-behind buffer for a coalescible macro&#46; <br><br>
+ *  Instead of running every call of the macro, calls are merged in memory
+ *  by their key (the bind values at <i>keyIndexes</i>) and written as one
+ *  batched update set every <i>flushInterval</i> milliseconds, or as soon
+ *  as <i>maxKeys</i> keys are waiting&#46; In <i>sum</i> mode the values at
+ *  <i>sumIndex</i> are added up, e&#46;g&#46; for 
+ *  <i>UPDATE stats SET hits = hits + ? WHERE id = ?</i>, in <i>last</i> 
+ *  mode the latest call for a key wins, e&#46;g&#46; for upserts&#46; <br><br>
+ *  The map is split in stripes with a lock each so concurrent callers 
+ *  rarely wait on each other&#46;
+ */
+public class Coalescer {
+  
+  private final static int stripes = 16;
+  
+  private String                       macro;
+  private ConnectionPool               pool;
+  private BatchOptions                 options;
+  private boolean                      sum;
+  private int                          sumIndex;
+  private int[]                        keyIndexes;
+  private int                          flushInterval;
+  private int                          maxKeys;
+  private ArrayList<HashMap<String, String[]>> maps = 
+    new ArrayList<HashMap<String, String[]>>();
+  private AtomicInteger                keys     = new AtomicInteger();
+  private AtomicBoolean                flushing = new AtomicBoolean();
+  private AtomicBoolean                pending  = new AtomicBoolean();
+  
+  /** <b>keyIndexes</b> may be null, in which case every bind value except
+   *  the one at <b>sumIndex</b> (in sum mode) is part of the key */
+  public Coalescer(String macro, ConnectionPool pool, BatchOptions options,
+                   boolean sum, int sumIndex, int[] keyIndexes, 
+                   int flushInterval, int maxKeys) {
+    this.macro         = macro;
+    this.pool          = pool;
+    this.options       = options;
+    this.sum           = sum;
+    this.sumIndex      = sumIndex;
+    this.keyIndexes    = keyIndexes;
+    this.flushInterval = flushInterval;
+    this.maxKeys       = maxKeys;
+    for(int s=0; s < stripes; s++) {
+      this.maps.add(new HashMap<String, String[]>());
+    }
+  }
+  
+  /** Flush every <i>flushInterval</i> milliseconds */
+  public void start(ScheduledExecutorService scheduler) {
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flush();
+      }
+    }, this.flushInterval, this.flushInterval, TimeUnit.MILLISECONDS);
+  }
+  
+  public String getAlias() {
+    return this.pool.getAlias();
+  }
+  
+  /** Merge one call of the macro with bind <b>values</b> */
+  public void add(String[] values) throws Exception {
+    check(values);
+    merge(getKey(values), values);
+    
+    //One size triggered flush at a time is plenty
+    if(this.keys.get() >= this.maxKeys && this.pending.compareAndSet(false, 
+                                                                    true)) {
+      WorkerPool.getExecutor().execute(new Runnable() {
+        public void run() {
+          try {
+            flush();
+          } finally {
+            pending.set(false);
+          }
+        }
+      });
+    }
+  }
+  
+  /** Throw if a call with bind <b>values</b> can't be merged */
+  public void check(String[] values) throws Exception {
+    getKey(values);
+    if(this.sum) {
+      if(this.sumIndex >= values.length) {
+        throw new QueryExecutorException("'" + this.macro + "' needs at " +
+                                         "least " + (this.sumIndex + 1) + 
+                                         " values");
+      }
+      try {
+        new BigDecimal(values[this.sumIndex]);
+      } catch(NumberFormatException nfe) {
+        throw new QueryExecutorException("'" + values[this.sumIndex] + 
+                                         "' can't be added up");
+      }
+    }
+  }
+  
+  private void merge(String key, String[] values) {
+    final HashMap<String, String[]> map = 
+      this.maps.get((key.hashCode() & 0x7fffffff) % stripes);
+    
+    synchronized(map) {
+      final String[] pending = map.get(key);
+      if(pending == null) {
+        map.put(key, values.clone());
+        this.keys.incrementAndGet();
+      } else if(this.sum) {
+        pending[this.sumIndex] = 
+          new BigDecimal(pending[this.sumIndex])
+            .add(new BigDecimal(values[this.sumIndex])).toPlainString();
+      } else {
+        map.put(key, values.clone());
+      }
+    }
+  }
+  
+  //Put back a row whose flush failed. Calls that arrived in the meantime
+  //are newer, so in last mode they win and in sum mode they are added to
+  private void restore(String key, String[] values) {
+    final HashMap<String, String[]> map = 
+      this.maps.get((key.hashCode() & 0x7fffffff) % stripes);
+    
+    synchronized(map) {
+      if(!map.containsKey(key)) {
+        map.put(key, values);
+        this.keys.incrementAndGet();
+      } else if(this.sum) {
+        final String[] pending = map.get(key);
+        pending[this.sumIndex] = 
+          new BigDecimal(pending[this.sumIndex])
+            .add(new BigDecimal(values[this.sumIndex])).toPlainString();
+      }
+    }
+  }
+  
+  private String getKey(String[] values) throws Exception {
+    StringBuilder key = new StringBuilder();
+    if(this.keyIndexes != null) {
+      for(int k : this.keyIndexes) {
+        if(k >= values.length) {
+          throw new QueryExecutorException("'" + this.macro + "' needs at " +
+                                           "least " + (k + 1) + " values");
+        }
+        key.append(values[k]).append('\u0000');
+      }
+    } else {
+      for(int v=0; v < values.length; v++) {
+        if(!this.sum || v != this.sumIndex) {
+          key.append(values[v]).append('\u0000');
+        }
+      }
+    }
+    return key.toString();
+  }
+  
+  /** Write everything merged so far as one update set */
+  public void flush() {
+    if(!this.flushing.compareAndSet(false, true)) {
+      return;
+    }
+    
+    try {
+      //Swap every stripe for an empty map so callers can keep merging 
+      //while the batch runs
+      final ArrayList<String[]> rows = new ArrayList<String[]>();
+      final ArrayList<String>   rowKeys = new ArrayList<String>();
+      for(int s=0; s < stripes; s++) {
+        final HashMap<String, String[]> map = this.maps.get(s);
+        synchronized(map) {
+          for(Map.Entry<String, String[]> e : map.entrySet()) {
+            rowKeys.add(e.getKey());
+            rows.add(e.getValue());
+          }
+          this.keys.addAndGet(-map.size());
+          map.clear();
+        }
+      }
+      
+      if(rows.isEmpty()) {
+        return;
+      }
+      
+      if(DebugLog.enabled) {
+        DebugLog.add(this, "Flushing " + rows.size() + " coalesced calls of '"+
+                           this.macro + "'");
+      }
+      
+      if(execute(rows)) {
+        return;
+      }
+      
+      //One at a time so a bad row only loses itself. If the database can't
+      //be reached put everything back for the next flush
+      if(!Util.isAvailable(this.pool)) {
+        for(int r=0; r < rows.size(); r++) {
+          restore(rowKeys.get(r), rows.get(r));
+        }
+        return;
+      }
+      
+      for(String[] row : rows) {
+        final ArrayList<String[]> one = new ArrayList<String[]>();
+        one.add(row);
+        if(!execute(one) && ErrorLog.enabled) {
+          ErrorLog.add(this, "Dropping coalesced call of '" + this.macro + 
+                             "' with " + new JSONArray(row), false);
+        }
+      }
+    } catch(Exception e) {
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this, "Coalesced flush of '" + this.macro + "' failed - " 
+                           + e, false);
+      }
+    } finally {
+      this.flushing.set(false);
+    }
+  }
+  
+  private boolean execute(ArrayList<String[]> rows) throws Exception {
+    final JSONArray set = new JSONArray();
+    for(String[] row : rows) {
+      final JSONObject reqObj = new JSONObject();
+      reqObj.put("query",  this.macro);
+      reqObj.put("values", new JSONArray(row));
+      set.put(reqObj);
+    }
+    
+    final QueryExecutor ex = new QueryExecutor(this.pool);
+    ex.setBatchOptions(this.options);
+    ex.execute(set.toString(), true);
+    return !ex.hasErrors();
+  }
+}
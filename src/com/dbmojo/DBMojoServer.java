@@ -21,9 +21,18 @@ along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
 
 import java.io.IOException;
 import java.io.File;
+import java.io.Reader;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.Properties;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -42,34 +51,196 @@ public class DBMojoServer extends NanoHTTPD {
   private short                                     serverPort;
   private short                                     maxConcurrentRequests;
   private ConcurrentHashMap<String, ConnectionPool> dbPools;
+  private ResponseCache                             responseCache;
+  private CacheSnapshot                             cacheSnapshot;
+  private int                                       snapshotInterval;
+  private ScheduledExecutorService                  scheduler;
+  private AdaptiveTtl                               adaptiveTtl;
+  private int                                       maxParallel;
+  private ConcurrentHashMap<String, BatchOptions>   batchOptions;
+  private ConcurrentHashMap<String, GroupCommitter> groupCommitters;
+  private WriteJournal                              journal;
+  private ConcurrentHashMap<String, Coalescer>      coalescers =
+    new ConcurrentHashMap<String, Coalescer>();
+  private int                                       journalDrainers;
+  private int                                       journalBatch;
+  private int                                       journalSync;
+  private ConcurrentHashMap<String, MaterializedQuery> materialized =
+    new ConcurrentHashMap<String, MaterializedQuery>();
   
   private DBMojoServer(boolean useGzip, short serverPort, short maxConcReq,
-                       ConcurrentHashMap<String, ConnectionPool> dbPools) {
+                       ConcurrentHashMap<String, ConnectionPool> dbPools,
+                       ResponseCache responseCache) {
     this.useGzip               = useGzip;
     this.serverPort            = serverPort;
     this.dbPools               = dbPools;   
     this.maxConcurrentRequests = maxConcReq; 
+    this.responseCache         = responseCache;
+    this.scheduler             = Executors.newScheduledThreadPool(4,
+                                   new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "DBMojoServer-scheduler");
+        t.setDaemon(true);
+        return t;
+      }
+    });
   }
   
   private void start() throws IOException {
+    for(ConnectionPool pool : this.dbPools.values()) {
+      if(pool instanceof JDBCClusteredConnectionPool) {
+        ((JDBCClusteredConnectionPool)pool).startHealthChecks(this.scheduler);
+      }
+    }
+    startCacheSnapshots();
+    startMaterializedQueries();
+    startJournal();
+    startCoalescers();
     super.start(this.serverPort, this.maxConcurrentRequests);  
   }
   
+  //Replay journaled update sets in the background, starting with whatever
+  //was left over from the last run
+  private void startJournal() {
+    if(this.journal == null) {
+      return;
+    }
+    
+    System.out.println("DBMojoServer: " + this.journal.getRecovered() + 
+                       " journaled update sets recovered");
+    
+    this.journal.start(new WriteJournal.Target() {
+      public QueryExecutor getExecutor(String alias, 
+                                       String json) throws Exception {
+        return getQueryExecutor(alias, json, null);
+      }
+      
+      public boolean isAvailable(String alias) {
+        return Util.isAvailable(dbPools.get(alias));
+      }
+    }, this.journalDrainers, this.journalBatch, this.journalSync);
+    
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        journal.sync();
+      }
+    });
+  }
+  
+  //Flush coalesced macro calls periodically and at shutdown
+  private void startCoalescers() {
+    for(Coalescer c : this.coalescers.values()) {
+      c.start(this.scheduler);
+    }
+    
+    if(!this.coalescers.isEmpty()) {
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          for(Coalescer c : coalescers.values()) {
+            c.flush();
+          }
+        }
+      });
+    }
+  }
+  
+  //Populate every materialized query before accepting requests then keep
+  //refreshing them in the background
+  private void startMaterializedQueries() {
+    for(final MaterializedQuery mq : this.materialized.values()) {
+      mq.refresh();
+      this.scheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          mq.refresh();
+        }
+      }, mq.getRefresh(), mq.getRefresh(), TimeUnit.SECONDS);
+    }
+  }
+  
+  //Warm the response cache from the last snapshot then keep saving it
+  //periodically (if configured) and at shutdown
+  private void startCacheSnapshots() {
+    if(this.cacheSnapshot == null) {
+      return;
+    }
+    
+    try {
+      final int loaded = this.cacheSnapshot.load(this.responseCache.getStore());
+      System.out.println("DBMojoServer: " + loaded + 
+                         " cached responses restored from snapshot");
+    } catch(IOException ioe) {
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this, "Cache snapshot could not be loaded - " + ioe, 
+                     false);
+      }
+    }
+    
+    final Runnable save = new Runnable() {
+      public void run() {
+        saveCacheSnapshot();
+      }
+    };
+    
+    if(this.snapshotInterval > 0) {
+      this.scheduler.scheduleWithFixedDelay(save, this.snapshotInterval, 
+                                            this.snapshotInterval, 
+                                            TimeUnit.SECONDS);
+    }
+    
+    Runtime.getRuntime().addShutdownHook(new Thread(save));
+  }
+  
+  private void saveCacheSnapshot() {
+    try {
+      this.cacheSnapshot.save(this.responseCache.getStore());
+    } catch(Exception e) {
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this, "Cache snapshot could not be saved - " + e, false);
+      }
+    }
+  }
+  
   /** Consume the HTTP request, delegate to the QueryExecutor, and 
    *  return the HTTP response. <br<br>
    *  Each request POST/GET request should contain the following params:<br>
    *  <ul>
-   *    <li><strong>alias</strong> - The database to connect to</li>
+   *    <li><strong>alias</strong> - The database to connect to. If it is 
+   *    left out each statement has to name its own alias (see 
+   *    serveFanOut)</li>
    *    <li><strong>json</strong> - The json containing the query/update set to 
    *    execute</li>   
    * </ul>
    * Optional params:
    * <ul>
    *    <li><strong>update</strong> - Does the query set contain updates? (Y/N).
-   *        If not specified the query set will be executed as queries, 
-   *        not updates.</li>
+   *        If not specified each statement is classified by its SQL and 
+   *        the set runs as an update set if any of them is not a read.</li>
+   *    <li><strong>token</strong> - The X-Consistency-Token returned by an
+   *    earlier update set against a cluster. The query set will only be read
+   *    from a replica that has caught up with that update.</li>
+   *    <li><strong>scatter</strong> - Y/N. Run a query set on every shard of
+   *    a sharded alias and merge the results (see ScatterGather).</li>
+   *    <li><strong>shardKey</strong> - The shard key used to pick the 
+   *    member of a sharded alias. Each statement can also carry its own
+   *    shardKey.</li>
+   *    <li><strong>parallel</strong> - Y/N. Run the queries of a query set
+   *    concurrently on up to maxParallel connections. Results keep their 
+   *    order.</li>
+   *    <li><strong>bulk</strong> - Y/N. Split an update set in chunks of
+   *    batchSize statements committed separately, running on up to 
+   *    maxParallel connections. Each chunk reports its own result.</li>
+   *    <li><strong>commitEvery</strong> - Commit an update set every N 
+   *    statements. On failure the error reports how many statements were
+   *    committed.</li>
+   *    <li><strong>onError</strong> - rollback/skip. With skip a failed 
+   *    statement of an update set is rolled back to a savepoint and 
+   *    reported by index while the rest of the set commits.</li>
+   *    <li><strong>async</strong> - Y/N. Acknowledge an update set as soon
+   *    as it is in the write journal and write it to the database in the 
+   *    background (see WriteJournal).</li>
    *    <li><strong>cache</strong> - The time (in seconds) to set the 
-   *    'Cache-Control' header to. 
+   *    'Cache-Control' header to. If the response cache is enabled 
+   *    successful query sets are also cached in memory for this long.
    *        If not specified the header will be set to 'no-cache'</li>
    * </ul>   
    */
@@ -77,35 +248,445 @@ public class DBMojoServer extends NanoHTTPD {
                         Properties header, Properties parms) {
     
     final String  json           = parms.getProperty("json");
-    final boolean update         = Util.getBoolean(parms.getProperty("update"));
+    final boolean update         = isUpdate(json, parms.getProperty("update"));
     final boolean documentFormat = false;
-    final int     cache          = update ? 
+    final boolean adaptiveCache  = !update && adaptiveTtl != null && 
+                                   parms.getProperty("cache") == null;
+    int           cache          = update ? 
                                    0 : Util.getInt(parms.getProperty("cache"));
+    final boolean gzip           = useGzip && 
+                                   acceptsGzip(header.getProperty(
+                                                 "accept-encoding"));
+    final long    token          = Util.getLong(parms.getProperty("token"));
+    final String  shardKey       = parms.getProperty("shardKey");
+    final boolean scatter        = Util.getBoolean(parms.getProperty("scatter"));
+    final boolean parallel       = Util.getBoolean(parms.getProperty("parallel"));
+    final boolean async          = Util.getBoolean(parms.getProperty("async"));
+    final boolean bulk           = Util.getBoolean(parms.getProperty("bulk"));
+    final int     commitEvery    = Util.getInt(parms.getProperty("commitEvery"));
+    final String  onError        = parms.getProperty("onError", "rollback");
     String        alias          = parms.getProperty("alias");
             
     //Log each access attempt
     if(AccessLog.enabled) {
-      AccessLog.add(clientIp, method, useGzip, uri, alias, update, json);
+      AccessLog.add(clientIp, method, gzip, uri, alias, update, json);
+    }
+  
+    //Admin endpoints
+    if(uri.equals("/admin/materialized")) {
+      return serveMaterializedStatus(gzip);
+    } else if(uri.equals("/admin/ttl")) {
+      return serveTtlStatus(gzip);
+    }
+    
+    //Materialized queries are only ever served from memory
+    if(parms.getProperty("materialized") != null) {
+      return serveMaterialized(parms.getProperty("materialized"), gzip);
+    }
+  
+    //Statements naming their own aliases are grouped and run in parallel
+    if(json != null && alias == null) {
+      return serveFanOut(json, parms.getProperty("update"), cache, gzip);
     }
   
     //Catch malformed request errors
     if(json == null || alias == null) {
       final String err = "Malformed request";
       if(DebugLog.enabled) DebugLog.add(this,err);
-      return respond(Util.getErrorJson(err).toString(),0);
+      return respond(Util.getErrorJson(err).toString(),0,gzip);
     }
     
     try {       
-      return respond(executeStatement(update,alias,json),cache); 
+      //Let the write history of the tables being read pick the cache time
+      if(adaptiveCache) {
+        cache = adaptiveTtl.getTtl(alias, new JSONArray(json));
+      }
+      
+      //Serve straight from the response cache if possible
+      String cacheKey = null;
+      if(responseCache != null && cache > 0 && token <= 0) {
+        cacheKey = ResponseCache.getKey(scatter ? alias + "#*" :
+                                        shardKey != null ? 
+                                          alias + "#" + shardKey : alias, 
+                                        json, update, gzip);
+        final ResponseCache.Entry hit = responseCache.get(cacheKey);
+        if(hit != null) {
+          return respond(hit);
+        }
+      }
+      
+      //Calls of coalescible macros are merged in memory and written later
+      if(update && !this.coalescers.isEmpty() && coalesce(alias, json)) {
+        return respond(Util.getSuccessJson("coalesced").toString(), 0, gzip);
+      }
+      
+      //Update sets the client doesn't need to wait for are only journaled
+      if(async) {
+        if(!update) {
+          throw new DBMojoServerException("Only update sets can be async");
+        }
+        return serveAsync(alias, json, shardKey, gzip);
+      }
+      
+      //Reporting reads can be scattered across every shard and merged
+      if(scatter) {
+        if(update) {
+          throw new DBMojoServerException("Update sets cannot be scattered");
+        }
+        return serveScatter(alias, json, cache, cacheKey, gzip);
+      }
+      
+      if(!onError.equals("rollback") && !onError.equals("skip")) {
+        throw new DBMojoServerException("Unknown onError '" + onError + "'");
+      }
+      
+      final QueryExecutor ex      = getQueryExecutor(alias, json, shardKey);
+      ex.setConsistencyToken(token);
+      ex.setParallel(parallel ? this.maxParallel : 0);
+      ex.setBulk(bulk && update ? this.maxParallel : 0);
+      ex.setCommitEvery(commitEvery);
+      ex.setSkipErrors(onError.equals("skip"));
+      
+      final String        results = ex.execute(json,update);
+      final byte[]        body    = encode(results, gzip);
+      final Properties    rHeader = getHeader(body.length, cache, gzip);
+      
+      //Let clients read their own writes from a cluster's replicas
+      if(update && !ex.hasErrors() && 
+         dbPools.get(alias) instanceof JDBCClusteredConnectionPool) {
+        rHeader.put("X-Consistency-Token", System.currentTimeMillis()+"");
+      }
+      
+      if(cacheKey != null && !ex.hasErrors()) {
+        responseCache.put(cacheKey, body, rHeader, cache);
+      }
+      
+      if(update && adaptiveTtl != null && !ex.hasErrors()) {
+        adaptiveTtl.recordWrites(alias, new JSONArray(json));
+      }
+      
+      return respond(body, rHeader);
+    } catch(Exception e) {
+      final String err = e.toString(); 
+      if(DebugLog.enabled) DebugLog.add(this, err);
+      return respond(Util.getErrorJson(err).toString(),0,gzip);
+    }
+  }
+  
+  //Sets sent without an update flag are updates if anything in them isn't
+  //a read
+  private static boolean isUpdate(String json, String update) {
+    if(update != null) {
+      return Util.getBoolean(update);
+    }
+    
+    try {
+      return json != null && QueryExecutor.containsUpdates(json);
+    } catch(JSONException je) {
+      //Let execute() report the malformed json
+      return false;
+    }
+  }
+  
+  /** Serve a query set whose statements each carry an <b>alias</b>&#46; 
+   *  The statements are grouped by alias, keeping their order within a
+   *  group, and the groups run concurrently on their own pools&#46; The 
+   *  response maps each alias to the results of its group, e.g&#46;
+   *  <i>{"mysql":[{...}], "derby":[{...}]}</i>&#46;
+   */
+  private Response serveFanOut(String json, String updateParam, int cache,
+                               boolean gzip) {
+    try {
+      final JSONArray reqs = new JSONArray(json);
+      final LinkedHashMap<String, JSONArray> groups = 
+        new LinkedHashMap<String, JSONArray>();
+      
+      for(int r=0; r < reqs.length(); r++) {
+        final JSONObject reqObj = reqs.getJSONObject(r);
+        final String     tAlias = reqObj.optString("alias", null);
+        if(tAlias == null) {
+          throw new DBMojoServerException("Statement " + r + 
+                                          " does not name an alias");
+        }
+        if(!groups.containsKey(tAlias)) {
+          groups.put(tAlias, new JSONArray());
+        }
+        groups.get(tAlias).put(reqObj);
+      }
+      
+      if(groups.isEmpty()) {
+        throw new DBMojoServerException("No queries specified");
+      }
+      
+      String cacheKey = null;
+      if(responseCache != null && cache > 0) {
+        cacheKey = ResponseCache.getKey("*", json, 
+                                        Util.getBoolean(updateParam), gzip);
+        final ResponseCache.Entry hit = responseCache.get(cacheKey);
+        if(hit != null) {
+          return respond(hit);
+        }
+      }
+      
+      //The calling thread runs the first group itself
+      final ArrayList<String>         aliases = new ArrayList<String>(
+                                                  groups.keySet());
+      final ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+      final boolean[]                 errors  = new boolean[aliases.size()];
+      for(int g=1; g < aliases.size(); g++) {
+        futures.add(WorkerPool.submit(
+          fanOutTask(aliases.get(g), groups.get(aliases.get(g)).toString(),
+                     updateParam, errors, g)));
+      }
+      
+      final JSONObject results = new JSONObject();
+      final String     first   = fanOutTask(aliases.get(0), 
+                                            groups.get(aliases.get(0))
+                                                  .toString(),
+                                            updateParam, errors, 0).call();
+      results.put(aliases.get(0), new JSONArray(first));
+      for(int g=1; g < aliases.size(); g++) {
+        results.put(aliases.get(g), new JSONArray(futures.get(g-1).get()));
+      }
+      
+      final byte[]     body    = encode(results.toString(), gzip);
+      final Properties rHeader = getHeader(body.length, cache, gzip);
+      
+      boolean failed = false;
+      for(boolean e : errors) {
+        failed = failed || e;
+      }
+      
+      if(cacheKey != null && !failed) {
+        responseCache.put(cacheKey, body, rHeader, cache);
+      }
+      
+      return respond(body, rHeader);
+    } catch(Exception e) {
+      final String err = e.toString(); 
+      if(DebugLog.enabled) DebugLog.add(this, err);
+      return respond(Util.getErrorJson(err).toString(),0,gzip);
+    }
+  }
+  
+  //Run one alias' share of a fan out request. Failures are reported as that
+  //alias' results rather than failing the whole request
+  private Callable<String> fanOutTask(final String alias, final String json,
+                                      final String updateParam, 
+                                      final boolean[] errors, final int g) {
+    return new Callable<String>() {
+      public String call() {
+        try {
+          final boolean       update = isUpdate(json, updateParam);
+          final QueryExecutor ex     = getQueryExecutor(alias, json, null);
+          final String        res    = ex.execute(json, update);
+          
+          errors[g] = ex.hasErrors();
+          if(update && adaptiveTtl != null && !ex.hasErrors()) {
+            adaptiveTtl.recordWrites(alias, new JSONArray(json));
+          }
+          return res;
+        } catch(Exception e) {
+          if(DebugLog.enabled) DebugLog.add(this, e.toString());
+          errors[g] = true;
+          return Util.getErrorJson(e.toString()).toString();
+        }
+      }
+    };
+  }
+  
+  //Hand every statement of the set to its Coalescer, if they all have one
+  //for this alias. Returns false if the set has to run normally
+  private boolean coalesce(String alias, String json) throws Exception {
+    final JSONArray     reqs   = new JSONArray(json);
+    final Coalescer[]   tCoal  = new Coalescer[reqs.length()];
+    final String[][]    values = new String[reqs.length()][];
+    
+    for(int r=0; r < reqs.length(); r++) {
+      final JSONObject reqObj  = reqs.getJSONObject(r);
+      final JSONArray  tValues = reqObj.optJSONArray("values");
+      tCoal[r] = this.coalescers.get(reqObj.optString("query"));
+      if(tCoal[r] == null || tValues == null || 
+         !tCoal[r].getAlias().equals(alias)) {
+        return false;
+      }
+      
+      values[r] = new String[tValues.length()];
+      for(int v=0; v < values[r].length; v++) {
+        values[r][v] = tValues.getString(v);
+      }
+      tCoal[r].check(values[r]);
+    }
+    
+    for(int r=0; r < reqs.length(); r++) {
+      tCoal[r].add(values[r]);
+    }
+    return true;
+  }
+  
+  private Response serveAsync(String alias, String json, String shardKey,
+                              boolean gzip) throws Exception {
+    if(this.journal == null) {
+      throw new DBMojoServerException("Asynchronous writes are not enabled");
+    }
+    
+    //Journal sets for a sharded alias under the shard they belong to
+    ConnectionPool pool = dbPools.get(alias);
+    if(pool == null) {
+      throw new DBMojoServerException("Alias '" + alias + "' is missing");
+    } else if(pool instanceof ShardedConnectionPool) {
+      pool = ((ShardedConnectionPool)pool).getShard(new JSONArray(json), 
+                                                    shardKey);
+    }
+    
+    //Make sure it is worth journaling before acknowledging it
+    final String set = new JSONArray(json).toString();
+    this.journal.append(pool.getAlias(), set);
+    
+    return respond(Util.getSuccessJson("queued").toString(), 0, gzip);
+  }
+  
+  /** POSTs to /ingest stream their body straight into the database */
+  public boolean isStreaming(String uri, String method) {
+    return uri.equals("/ingest");
+  }
+  
+  /** Load the CSV or NDJSON rows in the request <b>body</b> with one 
+   *  update statement (see Ingester)&#46; Params:
+   *  <ul>
+   *    <li><strong>alias</strong> - The database to load into</li>
+   *    <li><strong>query</strong> - The update (or macro) each row is bound
+   *    to</li>
+   *    <li><strong>format</strong> - csv or ndjson. Defaults to ndjson if 
+   *    the Content-Type mentions json, csv otherwise</li>
+   *    <li><strong>header</strong> - Y/N. Skip the first line of a CSV 
+   *    body</li>
+   *    <li><strong>columns</strong> - Comma separated names of the NDJSON 
+   *    object fields to bind, in order</li>
+   *    <li><strong>shardKey</strong> - The shard to load into if alias is
+   *    sharded</li>
+   *  </ul>
+   */
+  public Response serveStream(String clientIp, String uri, String method, 
+                              Properties header, Properties parms, 
+                              Reader body) {
+    final String  alias   = parms.getProperty("alias");
+    final String  query   = parms.getProperty("query");
+    final String  format  = parms.getProperty("format", 
+                              header.getProperty("content-type", "")
+                                    .indexOf("json") >= 0 ? "ndjson" : "csv");
+    final String  columns = parms.getProperty("columns");
+    final boolean gzip    = useGzip && acceptsGzip(header.getProperty(
+                                                     "accept-encoding"));
+    
+    if(AccessLog.enabled) {
+      AccessLog.add(clientIp, method, gzip, uri, alias, true, query);
+    }
+    
+    try {
+      if(alias == null || query == null) {
+        throw new DBMojoServerException("Malformed request");
+      } else if(!format.equals("csv") && !format.equals("ndjson")) {
+        throw new DBMojoServerException("Unknown format '" + format + "'");
+      }
+      
+      ConnectionPool pool = dbPools.get(alias);
+      if(pool == null) {
+        throw new DBMojoServerException("Alias '" + alias + "' is missing");
+      } else if(pool instanceof ShardedConnectionPool) {
+        if(parms.getProperty("shardKey") == null) {
+          throw new DBMojoServerException("Ingesting into '" + alias + 
+                                          "' needs a shardKey");
+        }
+        pool = ((ShardedConnectionPool)pool).getShard(
+                 parms.getProperty("shardKey"));
+      }
+      
+      final Ingester ingester = 
+        new Ingester(pool, batchOptions.get(pool.getAlias()), query,
+                     format.equals("ndjson"), 
+                     Util.getBoolean(parms.getProperty("header")),
+                     columns == null ? null : columns.split("\\s*,\\s*"));
+      return respond(ingester.ingest(body), 0, gzip);
     } catch(Exception e) {
       final String err = e.toString(); 
       if(DebugLog.enabled) DebugLog.add(this, err);
-      return respond(Util.getErrorJson(err).toString(),0);
+      return respond(Util.getErrorJson(err).toString(),0,gzip);
     }
   }
   
-  private String executeStatement(boolean update, String alias, 
-                                  String json) throws Exception {
+  private Response serveScatter(String alias, String json, int cache, 
+                                String cacheKey, boolean gzip) 
+                                throws Exception {
+    final ConnectionPool pool = dbPools.get(alias);
+    if(!(pool instanceof ShardedConnectionPool)) {
+      throw new DBMojoServerException("Alias '" + alias + "' is not sharded");
+    }
+    
+    final ScatterGather ex      = new ScatterGather((ShardedConnectionPool)pool);
+    final byte[]        body    = encode(ex.execute(json), gzip);
+    final Properties    rHeader = getHeader(body.length, cache, gzip);
+    
+    if(cacheKey != null && !ex.hasErrors()) {
+      responseCache.put(cacheKey, body, rHeader, cache);
+    }
+    
+    return respond(body, rHeader);
+  }
+  
+  private Response serveMaterialized(String name, boolean gzip) {
+    final MaterializedQuery mq = this.materialized.get(name);
+    
+    String err = null;
+    if(mq == null) {
+      err = "Materialized query '" + name + "' is missing";
+    } else if(mq.getBody(gzip) == null) {
+      err = "Materialized query '" + name + "' has not been refreshed yet";
+    }
+    
+    if(err != null) {
+      if(DebugLog.enabled) DebugLog.add(this, err);
+      return respond(Util.getErrorJson(err).toString(),0,gzip);
+    }
+    
+    //Let any downstream caches hold on to it until the next refresh
+    final byte[]     body    = mq.getBody(gzip);
+    final long       age     = mq.getStaleness() / 1000;
+    final Properties rHeader = getHeader(body.length, 
+                                         (int)Math.max(0,mq.getRefresh()-age),
+                                         gzip);
+    rHeader.put("Age", age+"");
+    
+    return respond(body, rHeader);
+  }
+  
+  private Response serveMaterializedStatus(boolean gzip) {
+    JSONArray status = new JSONArray();
+    try {
+      for(MaterializedQuery mq : this.materialized.values()) {
+        status.put(mq.getStatus());
+      }
+    } catch(JSONException je) {
+      return respond(Util.getErrorJson(je.toString()).toString(),0,gzip);
+    }
+    return respond(status.toString(),0,gzip);
+  }
+  
+  private Response serveTtlStatus(boolean gzip) {
+    if(this.adaptiveTtl == null) {
+      final String err = "Adaptive cache TTLs are not enabled";
+      return respond(Util.getErrorJson(err).toString(),0,gzip);
+    }
+    
+    try {
+      return respond(this.adaptiveTtl.getStatus().toString(),0,gzip);
+    } catch(JSONException je) {
+      return respond(Util.getErrorJson(je.toString()).toString(),0,gzip);
+    }
+  }
+  
+  private QueryExecutor getQueryExecutor(String alias, String json,
+                                        String shardKey) throws Exception {
       
     ConnectionPool pool = dbPools.get(alias);
     
@@ -114,35 +695,86 @@ public class DBMojoServer extends NanoHTTPD {
       throw new DBMojoServerException("Alias '" + alias + "' is missing");
     }
     
-    QueryExecutor ex      = new QueryExecutor(pool);
-    String        results = ex.execute(json,update);
-    
-    if(useGzip) {
-      results = Util.gzipString(results);
+    //Sharded aliases run against the member pool holding the shard key
+    if(pool instanceof ShardedConnectionPool) {
+      pool = ((ShardedConnectionPool)pool).getShard(new JSONArray(json), 
+                                                    shardKey);
     }
     
-    return results;
+    final QueryExecutor ex = new QueryExecutor(pool);
+    ex.setBatchOptions(batchOptions.get(pool.getAlias()));
+    ex.setGroupCommitter(groupCommitters.get(pool.getAlias()));
+    return ex;
   }
   
-  private Response respond(String text, int cache) {
-    NanoHTTPD.Response resp = new NanoHTTPD.Response(HTTP_OK, MIME_PLAINTEXT, 
-                                                     text);
+  //Only gzip the response if the client is willing to accept it
+  private static boolean acceptsGzip(String acceptEncoding) {
+    return acceptEncoding != null && 
+           acceptEncoding.toLowerCase().indexOf("gzip") >= 0;
+  }
+  
+  //Turn the results into the final response body
+  private static byte[] encode(String text, boolean gzip) throws IOException {
+    final byte[] body = text.getBytes("UTF-8");
+    return gzip ? Util.gzip(body) : body;
+  }
+  
+  private Properties getHeader(int length, int cache, boolean gzip) {
+    Properties rHeader = new Properties();
     
-    if(useGzip) {
-      resp.addHeader("Content-Encoding","gzip");
+    if(gzip) {
+      rHeader.put("Content-Encoding","gzip");
     }
     
     //Cache time is usefull for the web accelerators that might front 
     //DBMojo such as Varnish, Squid, or Oracle WebCache
     if(cache > 0) {
-      resp.addHeader("Cache-Control", "public, max-age="+cache);
+      rHeader.put("Cache-Control", "public, max-age="+cache);
     } else {
-      resp.addHeader("Cache-Control", "no-cache");
+      rHeader.put("Cache-Control", "no-cache");
     }
     
-    resp.addHeader("Content-Length", text.length()+"");
+    rHeader.put("Content-Length", length+"");
     
+    return rHeader;
+  }
+  
+  private Response respond(byte[] body, Properties rHeader) {
+    return respond(ByteBuffer.wrap(body), rHeader);
+  }
+  
+  private Response respond(ByteBuffer body, Properties rHeader) {
+    NanoHTTPD.Response resp = new NanoHTTPD.Response(HTTP_OK, MIME_PLAINTEXT, 
+                                                     body);
+    resp.header.putAll(rHeader);
     return resp;
+  }
+  
+  //Write a cache hit straight from the cache's memory, then let the cache 
+  //reuse it. Downstream caches may only keep it for as long as it has left
+  private Response respond(final ResponseCache.Entry hit) {
+    final long left = Math.max(0, (hit.expires - System.currentTimeMillis() 
+                                   + 999) / 1000);
+    hit.header.put("Cache-Control", "public, max-age=" + left);
+    
+    final Response resp = respond(hit.body, hit.header);
+    resp.onSent = new Runnable() {
+      public void run() {
+        hit.release();
+      }
+    };
+    return resp;
+  }
+  
+  private Response respond(String text, int cache, boolean gzip) {
+    byte[] body;
+    try {
+      body = encode(text, gzip);
+    } catch(IOException ioe) {
+      body = text.getBytes();
+      gzip = false;
+    }
+    return respond(body, getHeader(body.length, cache, gzip));
   }  
   
   //Parse the provided config file json and return a ready to start 
@@ -192,6 +824,38 @@ public class DBMojoServer extends NanoHTTPD {
       String  accessLogPath     = jObj.optString("accessLogPath");
       String  errorLogPath      = jObj.optString("errorLogPath");
       String  debugLogPath      = jObj.optString("debugLogPath");      
+      String  macroPath         = jObj.optString("macroPath");
+      int     maxParallel       = jObj.optInt("maxParallel", 4);
+      
+      //Optional cache of encoded responses. Entries are either kept on the
+      //heap or in off heap slabs (direct buffers or a memory-mapped file)
+      //{responseCache: {maxEntries: 10000}} or
+      //{responseCache: {offHeapMegabytes: 4096, slabMegabytes: 64,
+      //                 mappedFile: "cache.bin"}}
+      //The cache can be persisted across restarts with
+      //{responseCache: {..., snapshotFile: "cache.snapshot", 
+      //                 snapshotInterval: 300, snapshotVersion: "1"}}
+      ResponseCache responseCache = null;
+      loadResponseCache: {
+        final JSONObject tCache = jObj.optJSONObject("responseCache");
+        if(tCache == null) {
+          break loadResponseCache;
+        }
+        
+        final long tOffHeap = tCache.optLong("offHeapMegabytes");
+        if(tOffHeap > 0) {
+          final int tSlab = tCache.optInt("slabMegabytes", 16);
+          if(tSlab <= 0 || tSlab > 1024) {
+            throw new Exception("'slabMegabytes' must be between 1 and 1024");
+          }
+          responseCache = new ResponseCache(
+            new OffHeapCacheStore(tOffHeap << 20, tSlab << 20, 
+                                  tCache.optString("mappedFile")));
+        } else if(tCache.optInt("maxEntries") > 0) {
+          responseCache = new ResponseCache(
+            new HeapCacheStore(tCache.optInt("maxEntries")));
+        }
+      }
       
       checkMaxConcurrentReqeusts: {
         if(maxConcReq <= 0) {
@@ -200,6 +864,12 @@ public class DBMojoServer extends NanoHTTPD {
         }
       }
       
+      checkMaxParallel: {
+        if(maxParallel <= 0) {
+          throw new Exception("'maxParallel' must be greater than 0");
+        }
+      }
+      
       checkServerPort: {
         //Make sure serverPort was specified
         if(serverPort <= 0) {
@@ -246,6 +916,10 @@ public class DBMojoServer extends NanoHTTPD {
                   
       ConcurrentHashMap<String,ConnectionPool> dbPools = 
         new ConcurrentHashMap<String, ConnectionPool>();
+      ConcurrentHashMap<String,BatchOptions> batchOptions = 
+        new ConcurrentHashMap<String, BatchOptions>();
+      ConcurrentHashMap<String,GroupCommitter> groupCommitters = 
+        new ConcurrentHashMap<String, GroupCommitter>();
       loadDbAlaises: {        
         ClassLoader     classLoader = ClassLoader.getSystemClassLoader();
         final JSONArray dbAliases   = jObj.getJSONArray("dbAliases");
@@ -326,6 +1000,9 @@ public class DBMojoServer extends NanoHTTPD {
                                 " the provided config file");
           }
         
+          //How update sets are batched for this alias
+          batchOptions.put(tAlias, new BatchOptions(tObj, new BatchOptions()));
+        
           //Everything is nicely set! Lets add a connection pool to the 
           //dbPool Hashtable keyed by this alias name
           dbPools.put(tAlias, new JDBCConnectionPool(tDriver, tDsn, tUsername, 
@@ -357,29 +1034,361 @@ public class DBMojoServer extends NanoHTTPD {
           
             //Add the dbAlias to the cluster writeTo list
             ConnectionPool writeTo = dbPools.get(tWriteTo);
+            
+            //Clusters batch like their writeTo alias unless told otherwise
+            batchOptions.put(tAlias, new BatchOptions(tObj, 
+                                       batchOptions.get(tWriteTo)));
           
+            //Each readFrom entry is either an alias or 
+            //{alias: "x", weight: 2, maxConcurrency: 10}
             final JSONArray  tReadFrom = tObj.getJSONArray("readFrom");
             ArrayList<ConnectionPool> readFromList = 
               new ArrayList<ConnectionPool>(); 
+            int[]   tWeights        = new int[tReadFrom.length()];
+            int[]   tMaxConcurrency = new int[tReadFrom.length()];
+            String[] tLagQueries    = new String[tReadFrom.length()];
+            boolean tWeighted       = false;
+            int     tTotalWeight    = 0;
             for(int r=0; r < tReadFrom.length(); r++) {
-              final String tRead = tReadFrom.getString(r);            
+              final JSONObject tMember = tReadFrom.optJSONObject(r);
+              final String     tRead   = tMember != null ? 
+                                         tMember.getString("alias") : 
+                                         tReadFrom.getString(r);
               if(!dbPools.containsKey(tRead)) {
                 throw new Exception("the alias '"+tRead+
                                     "' is not present in the valid dbAliases. "+
                                     "This alias cannot be used for a cluster.");
               }
+              
+              tWeights[r]        = 1;
+              if(tMember != null) {
+                tWeighted          = tWeighted || tMember.has("weight");
+                tWeights[r]        = tMember.optInt("weight", 1);
+                tMaxConcurrency[r] = tMember.optInt("maxConcurrency");
+              }
+              
+              //Replication lag query for read-your-writes routing
+              tLagQueries[r] = tMember != null && tMember.has("lagQuery") ?
+                               tMember.getString("lagQuery") : 
+                               tObj.optString("lagQuery");
+              
+              if(tWeights[r] < 0 || tWeights[r] > 1000) {
+                throw new Exception("the weight for '"+tRead+"' in cluster '"+
+                                    tAlias+"' must be between 0 and 1000");
+              }
+              tTotalWeight += tWeights[r];
+              
               //Add the dbAlias to the cluster readFrom list
               readFromList.add(dbPools.get(tRead));
             }
+            
+            if(tTotalWeight <= 0) {
+              throw new Exception("cluster '"+tAlias+"' has no read weight");
+            }
           
-            dbPools.put(tAlias, new JDBCClusteredConnectionPool(tAlias, 
-                                                                writeTo, 
-                                                                readFromList));
+            JDBCClusteredConnectionPool tCluster = 
+              new JDBCClusteredConnectionPool(tAlias, writeTo, readFromList);
+            
+            //Weighted round robin instead of latency based balancing
+            if(tObj.optString("balance", tWeighted ? "weighted" : "latency")
+                   .equals("weighted")) {
+              tCluster.setReadWeights(tWeights);
+            }
+            tCluster.setMaxConcurrency(tMaxConcurrency);
+            
+            if(tObj.optInt("lagInterval", 1) <= 0) {
+              throw new Exception("'lagInterval' must be positive for "+
+                                  "cluster '"+tAlias+"'");
+            }
+            tCluster.setLagQueries(tLagQueries, tObj.optInt("lagInterval", 1));
+            
+            //Hedged reads, either after a fixed delay (ms) or after the
+            //first member's observed p95 latency
+            if(tObj.optString("hedgeDelay").equalsIgnoreCase("p95")) {
+              tCluster.setHedging(0, true);
+            } else if(tObj.optLong("hedgeDelay") > 0) {
+              tCluster.setHedging(tObj.optLong("hedgeDelay"), false);
+            }
+            
+            //Circuit breaking and failover for read members
+            if(tObj.optInt("failureThreshold", 3) <= 0 || 
+               tObj.optInt("probeInterval", 5) <= 0 ||
+               tObj.optInt("maxFailover", readFromList.size()) <= 0) {
+              throw new Exception("'failureThreshold', 'probeInterval' and "+
+                                  "'maxFailover' must be positive for "+
+                                  "cluster '"+tAlias+"'");
+            }
+            tCluster.setHealthCheck(tObj.optInt("failureThreshold", 3),
+                                    tObj.optInt("probeInterval", 5),
+                                    tObj.optString("probeQuery"));
+            tCluster.setFailover(tObj.optInt("maxFailover", 
+                                             readFromList.size()),
+                                 tObj.optBoolean("fallbackToWriter"));
+            
+            dbPools.put(tAlias, tCluster);
           }
         }
       }
       
-      server = new DBMojoServer(useGzip, serverPort, maxConcReq, dbPools);
+      //Sharded aliases route each request to one member by a shard key
+      //{shards: [{alias: "users", strategy: "hash", members: ["db1","db2"]},
+      //          {alias: "orders", strategy: "range", 
+      //           members: [{alias: "db1", from: 0, to: 1000000},
+      //                     {alias: "db2", from: 1000000}]}]}
+      loadShards: {
+        final JSONArray tShards = jObj.optJSONArray("shards");
+        
+        if(tShards != null) {
+          for(int s=0; s < tShards.length(); s++) {
+            final JSONObject tObj      = tShards.getJSONObject(s);
+            final String     tAlias    = tObj.getString("alias");
+            final String     tStrategy = tObj.optString("strategy", "hash");
+            final JSONArray  tMembers  = tObj.getJSONArray("members");
+            
+            if(dbPools.containsKey(tAlias)) {
+              throw new Exception("the alias '"+tAlias+"' is already defined.");
+            }
+            
+            if(tMembers.length() <= 0) {
+              throw new Exception("sharded alias '"+tAlias+"' has no members");
+            }
+            
+            ArrayList<ConnectionPool> tPools = new ArrayList<ConnectionPool>();
+            long[] tFrom = new long[tMembers.length()];
+            long[] tTo   = new long[tMembers.length()];
+            for(int m=0; m < tMembers.length(); m++) {
+              final JSONObject tMember = tMembers.optJSONObject(m);
+              final String     tShard  = tMember != null ? 
+                                         tMember.getString("alias") : 
+                                         tMembers.getString(m);
+              if(!dbPools.containsKey(tShard) || 
+                 dbPools.get(tShard) instanceof ShardedConnectionPool) {
+                throw new Exception("the alias '"+tShard+
+                                    "' is not a valid dbAlias or cluster. "+
+                                    "This alias cannot be used for a shard.");
+              }
+              
+              if(tStrategy.equals("range")) {
+                if(tMember == null) {
+                  throw new Exception("range shard '"+tShard+"' of '"+tAlias+
+                                      "' needs a from/to range");
+                }
+                tFrom[m] = tMember.optLong("from", Long.MIN_VALUE);
+                tTo[m]   = tMember.optLong("to",   Long.MAX_VALUE);
+              }
+              
+              tPools.add(dbPools.get(tShard));
+            }
+            
+            if(tStrategy.equals("hash")) {
+              dbPools.put(tAlias, new ShardedConnectionPool(tAlias, tPools));
+            } else if(tStrategy.equals("range")) {
+              dbPools.put(tAlias, new ShardedConnectionPool(tAlias, tPools, 
+                                                            tFrom, tTo));
+            } else {
+              throw new Exception("unknown shard strategy '"+tStrategy+
+                                  "' for '"+tAlias+"'");
+            }
+          }
+        }
+      }
+      
+      //Update sets sent with async=Y are journaled and written in the 
+      //background
+      //{journal: {file: "journal.bin", megabytes: 64, fsyncInterval: 50,
+      //           drainers: 1, drainBatch: 1000}}
+      WriteJournal journal         = null;
+      int          journalDrainers = 0, journalBatch = 0, journalSync = 0;
+      loadJournal: {
+        final JSONObject tJournal = jObj.optJSONObject("journal");
+        if(tJournal == null) {
+          break loadJournal;
+        }
+        
+        final int tMegabytes = tJournal.optInt("megabytes", 64);
+        journalSync          = tJournal.optInt("fsyncInterval", 50);
+        journalDrainers      = tJournal.optInt("drainers", 1);
+        journalBatch         = tJournal.optInt("drainBatch", 1000);
+        if(tMegabytes <= 0 || tMegabytes > 2000 || journalSync <= 0 || 
+           journalDrainers <= 0 || journalBatch <= 0) {
+          throw new Exception("'journal' needs 0 < megabytes <= 2000 and " +
+                              "positive fsyncInterval, drainers and " +
+                              "drainBatch");
+        }
+        
+        journal = new WriteJournal(tJournal.getString("file"), 
+                                   tMegabytes << 20);
+      }
+      
+      //Calls of these macros are merged by key and written in batches
+      //{coalesce: [{macro: "$stats.hit", alias: "mysql", mode: "sum", 
+      //             sumIndex: 0, flushInterval: 1000, maxKeys: 10000}]}
+      final ConcurrentHashMap<String, Coalescer> coalescers = 
+        new ConcurrentHashMap<String, Coalescer>();
+      loadCoalesce: {
+        final JSONArray tCoalesce = jObj.optJSONArray("coalesce");
+        
+        for(int c=0; tCoalesce != null && c < tCoalesce.length(); c++) {
+          final JSONObject tObj   = tCoalesce.getJSONObject(c);
+          final String     tMacro = tObj.getString("macro");
+          final String     tAlias = tObj.getString("alias");
+          final String     tMode  = tObj.optString("mode", "sum");
+          final JSONArray  tKeys  = tObj.optJSONArray("keyIndexes");
+          final int        tSum   = tObj.optInt("sumIndex", 0);
+          final int        tFlush = tObj.optInt("flushInterval", 1000);
+          final int        tMax   = tObj.optInt("maxKeys", 10000);
+          
+          if(!tMacro.startsWith("$")) {
+            throw new Exception("'" + tMacro + "' is not a macro");
+          }
+          if(!dbPools.containsKey(tAlias) || 
+             dbPools.get(tAlias) instanceof ShardedConnectionPool) {
+            throw new Exception("the alias '"+tAlias+"' is not a valid "+
+                                "dbAlias or cluster. Coalesced macros can't "+
+                                "use it.");
+          }
+          if(!tMode.equals("sum") && !tMode.equals("last")) {
+            throw new Exception("unknown coalesce mode '"+tMode+"' for '"+
+                                tMacro+"'");
+          }
+          if(tMode.equals("last") && tKeys == null) {
+            throw new Exception("'keyIndexes' is required for '"+tMacro+"'");
+          }
+          if(tSum < 0 || tFlush <= 0 || tMax <= 0) {
+            throw new Exception("'"+tMacro+"' needs sumIndex >= 0 and " +
+                                "positive flushInterval and maxKeys");
+          }
+          if(coalescers.containsKey(tMacro)) {
+            throw new Exception("'"+tMacro+"' is already coalesced");
+          }
+          
+          int[] tKeyIndexes = null;
+          if(tKeys != null) {
+            tKeyIndexes = new int[tKeys.length()];
+            for(int k=0; k < tKeyIndexes.length; k++) {
+              tKeyIndexes[k] = tKeys.getInt(k);
+            }
+          }
+          
+          coalescers.put(tMacro, new Coalescer(tMacro, dbPools.get(tAlias),
+                                               batchOptions.get(tAlias),
+                                               tMode.equals("sum"), tSum,
+                                               tKeyIndexes, tFlush, tMax));
+        }
+      }
+      
+      //Small update sets can be committed together per alias
+      //{alias: "mysql", ..., groupCommit: {window: 5, maxGroup: 50}}
+      loadGroupCommit: {
+        final JSONArray[] tLists = {jObj.getJSONArray("dbAliases"),
+                                    jObj.optJSONArray("clusters")};
+        for(JSONArray tList : tLists) {
+          for(int i=0; tList != null && i < tList.length(); i++) {
+            final JSONObject tObj    = tList.getJSONObject(i);
+            final JSONObject tGroup  = tObj.optJSONObject("groupCommit");
+            if(tGroup == null) {
+              continue;
+            }
+            
+            final String tAlias   = tObj.getString("alias");
+            final int    tWindow  = tGroup.optInt("window", 5);
+            final int    tMax     = tGroup.optInt("maxGroup", 50);
+            final int    tMaxStmt = tGroup.optInt("maxStatements", 10);
+            if(tWindow < 0 || tMax <= 0 || tMaxStmt <= 0) {
+              throw new Exception("'groupCommit' for '" + tAlias + "' needs "+
+                                  "window >= 0, maxGroup > 0 and " +
+                                  "maxStatements > 0");
+            }
+            
+            groupCommitters.put(tAlias, new GroupCommitter(dbPools.get(tAlias),
+                                                           tWindow, tMax,
+                                                           tMaxStmt));
+          }
+        }
+      }
+      
+      server = new DBMojoServer(useGzip, serverPort, maxConcReq, dbPools,
+                                responseCache);
+      server.maxParallel  = maxParallel;
+      server.batchOptions    = batchOptions;
+      server.groupCommitters = groupCommitters;
+      server.journal         = journal;
+      server.coalescers      = coalescers;
+      server.journalDrainers = journalDrainers;
+      server.journalBatch    = journalBatch;
+      server.journalSync     = journalSync;
+      
+      //Learn cache TTLs per table from observed writes
+      //{adaptiveCache: {minTtl: 1, maxTtl: 3600, factor: 0.5}}
+      loadAdaptiveCache: {
+        final JSONObject tAdaptive = jObj.optJSONObject("adaptiveCache");
+        if(tAdaptive != null) {
+          final int tMin = tAdaptive.optInt("minTtl", 1);
+          final int tMax = tAdaptive.optInt("maxTtl", 3600);
+          if(tMin < 0 || tMax < tMin) {
+            throw new Exception("'adaptiveCache' needs 0 <= minTtl <= maxTtl");
+          }
+          server.adaptiveTtl = new AdaptiveTtl(tMin, tMax, 
+                                 tAdaptive.optDouble("factor", 0.5));
+        }
+      }
+      
+      loadMacros: {
+        if(!macroPath.equals("")) {
+          MacroCache.populate(macroPath.endsWith("/") ? 
+                              macroPath : macroPath + "/");
+        }
+      }
+      
+      //Queries refreshed on a schedule and served only from memory
+      //{materialized: [{name: "x", alias: "mysql", query: "$x", refresh: 30}]}
+      loadMaterialized: {
+        final JSONArray tMaterialized = jObj.optJSONArray("materialized");
+        
+        if(tMaterialized != null) {
+          for(int m=0; m < tMaterialized.length(); m++) {
+            final JSONObject tObj   = tMaterialized.getJSONObject(m);
+            final String     tName  = tObj.getString("name");
+            final String     tAlias = tObj.getString("alias");
+            
+            if(!dbPools.containsKey(tAlias)) {
+              throw new Exception("the alias '"+tAlias+"' used by materialized "+
+                                  "query '"+tName+"' is not defined");
+            }
+            
+            if(server.materialized.containsKey(tName)) {
+              throw new Exception("the materialized query '"+tName+
+                                  "' is already defined");
+            }
+            
+            if(tObj.optInt("refresh", 60) <= 0) {
+              throw new Exception("the materialized query '"+tName+
+                                  "' needs a refresh interval");
+            }
+            
+            server.materialized.put(tName, 
+              new MaterializedQuery(tObj, dbPools.get(tAlias)));
+          }
+        }
+      }
+      
+      loadCacheSnapshot: {
+        final JSONObject tCache = jObj.optJSONObject("responseCache");
+        if(responseCache == null || 
+           tCache.optString("snapshotFile").equals("")) {
+          break loadCacheSnapshot;
+        }
+        
+        //Snapshots are only valid for the same databases and for the
+        //same user supplied version
+        final String tVersion = tCache.optString("snapshotVersion") + ":" + 
+          Integer.toHexString((jObj.optJSONArray("dbAliases") + "" + 
+                               jObj.optJSONArray("clusters")).hashCode());
+        
+        server.cacheSnapshot    = new CacheSnapshot(
+                                    tCache.optString("snapshotFile"), tVersion);
+        server.snapshotInterval = tCache.optInt("snapshotInterval");
+      }
       
     } catch(Exception jsonEx) {
       System.out.println("DBMojoServer: Config error, " + jsonEx);      
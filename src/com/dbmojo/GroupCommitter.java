@@ -0,0 +1,172 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/** Commits small update sets from different requests together&#46; <br><br>
+ *  Update sets of up to <i>maxStatements</i> statements are queued and
+ *  a single thread per alias collects whatever arrives within <i>window</i>
+ *  milliseconds of the first one (at most <i>maxGroup</i> sets)&#46; The 
+ *  group runs back to back on one connection, each set behind its own 
+ *  savepoint, under a single commit&#46; <br><br>
+ *  A set that fails is rolled back to its savepoint and only its caller 
+ *  sees the error&#46; If the commit itself fails every set in the group
+ *  fails&#46; <br><br>
+ *  <i>{alias: "mysql", ..., groupCommit: {window: 5, maxGroup: 50, 
+ *  maxStatements: 10}}</i>
+ */
+public class GroupCommitter implements Runnable {
+  
+  private ConnectionPool                    pool;
+  private long                              window;
+  private int                               maxGroup;
+  private int                               maxStatements;
+  private LinkedBlockingQueue<Pending>      queue = 
+    new LinkedBlockingQueue<Pending>();
+  
+  public GroupCommitter(ConnectionPool pool, int window, int maxGroup,
+                        int maxStatements) {
+    this.pool          = pool;
+    this.window        = window;
+    this.maxGroup      = maxGroup;
+    this.maxStatements = maxStatements;
+    
+    Thread t = new Thread(this, "DBMojo-group-commit-" + pool.getAlias());
+    t.setDaemon(true);
+    t.start();
+  }
+  
+  /** Is <b>reqStr</b> small enough to be group committed? */
+  public boolean accepts(String reqStr) {
+    try {
+      final JSONArray reqs = new JSONArray(reqStr);
+      return reqs.length() > 0 && reqs.length() <= this.maxStatements;
+    } catch(JSONException je) {
+      //Let QueryExecutor report the malformed json
+      return false;
+    }
+  }
+  
+  /** Queue <b>reqStr</b> for the next group and wait for its results */
+  public String submit(QueryExecutor ex, String reqStr) throws Exception {
+    final Pending p = new Pending(ex, reqStr);
+    this.queue.put(p);
+    p.done.await();
+    return p.result;
+  }
+  
+  public void run() {
+    final ArrayList<Pending> group = new ArrayList<Pending>();
+    while(true) {
+      try {
+        group.add(this.queue.take());
+        
+        final long deadline = System.nanoTime() + 
+                              TimeUnit.MILLISECONDS.toNanos(this.window);
+        while(group.size() < this.maxGroup) {
+          final Pending p = this.queue.poll(deadline - System.nanoTime(), 
+                                            TimeUnit.NANOSECONDS);
+          if(p == null) {
+            break;
+          }
+          group.add(p);
+        }
+        
+        commit(group);
+      } catch(InterruptedException ie) {
+        return;
+      } finally {
+        //Never leave a caller waiting
+        for(Pending p : group) {
+          p.done.countDown();
+        }
+        group.clear();
+      }
+    }
+  }
+  
+  private void commit(ArrayList<Pending> group) {
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Group committing " + group.size() + 
+                         " update sets against '" + this.pool.getAlias() + "'");
+    }
+    
+    Connection conn = null;
+    try {
+      conn = this.pool.checkOut(true);
+      while(conn == null) {
+        Thread.yield();
+        conn = this.pool.checkOut(true);
+      }
+      conn.setAutoCommit(false);
+      
+      for(Pending p : group) {
+        p.result = p.ex.executeInGroup(conn, p.reqStr);
+      }
+      
+      conn.commit();
+    } catch(Exception e) {
+      //None of the group is durable, whatever each set reported
+      final String err = "Group commit failed: " + e;
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this, err, false);
+      }
+      
+      if(conn != null) {
+        try {
+          conn.rollback();
+        } catch(Exception re) {
+          if(ErrorLog.enabled) {
+            ErrorLog.add(this, "Group rollback failed: " + re, false);
+          }
+        }
+      }
+      
+      for(Pending p : group) {
+        p.result = Util.getErrorJson(err).toString();
+        p.ex.groupFailed();
+      }
+    } finally {
+      if(conn != null) {
+        this.pool.checkIn(conn);
+      }
+    }
+  }
+  
+  /** An update set waiting for its group to be committed */
+  private static class Pending {
+    final QueryExecutor  ex;
+    final String         reqStr;
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile String      result;
+    
+    Pending(QueryExecutor ex, String reqStr) {
+      this.ex     = ex;
+      this.reqStr = reqStr;
+    }
+  }
+}
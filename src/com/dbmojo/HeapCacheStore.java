@@ -0,0 +1,138 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A CacheStore that keeps each serialized entry in its own byte[] on the
+ *  heap&#46; Once <b>maxEntries</b> is reached expired entries are purged
+ *  and then arbitrary entries are evicted&#46;
+ */
+public class HeapCacheStore implements CacheStore {
+
+  private static class Entry {
+    final byte[] value;
+    final long   expires;
+
+    Entry(byte[] value, long expires) {
+      this.value   = value;
+      this.expires = expires;
+    }
+  }
+
+  private int                              maxEntries;
+  private ConcurrentHashMap<String, Entry> cache;
+
+  public HeapCacheStore(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.cache      = new ConcurrentHashMap<String, Entry>();
+  }
+
+  public ByteBuffer get(String key) {
+    final Entry entry = this.cache.get(key);
+    if(entry == null) {
+      return null;
+    }
+    if(System.currentTimeMillis() >= entry.expires) {
+      this.cache.remove(key, entry);
+      return null;
+    }
+    return ByteBuffer.wrap(entry.value);
+  }
+
+  public CacheStore.Lease lease(String key) {
+    final Entry entry = this.cache.get(key);
+    if(entry == null) {
+      return null;
+    }
+    if(System.currentTimeMillis() >= entry.expires) {
+      this.cache.remove(key, entry);
+      return null;
+    }
+    
+    //Entries are never written to again, nothing to release
+    return new CacheStore.Lease() {
+      public ByteBuffer getValue() {
+        return ByteBuffer.wrap(entry.value).asReadOnlyBuffer();
+      }
+      
+      public long getExpires() {
+        return entry.expires;
+      }
+      
+      public void release() {
+      }
+    };
+  }
+
+  public boolean put(String key, byte[] value, long expires) {
+    if(this.maxEntries <= 0) {
+      return false;
+    }
+
+    if(this.cache.size() >= this.maxEntries) {
+      purge(System.currentTimeMillis());
+      Iterator<String> keys = this.cache.keySet().iterator();
+      while(this.cache.size() >= this.maxEntries && keys.hasNext()) {
+        keys.next();
+        keys.remove();
+      }
+    }
+
+    this.cache.put(key, new Entry(value, expires));
+    return true;
+  }
+
+  /** Remove all expired entries */
+  public void purge(long now) {
+    Iterator<Map.Entry<String, Entry>> entries = 
+      this.cache.entrySet().iterator();
+    while(entries.hasNext()) {
+      if(now >= entries.next().getValue().expires) {
+        entries.remove();
+      }
+    }
+  }
+
+  public void forEach(CacheStore.Visitor visitor) {
+    final long now = System.currentTimeMillis();
+    for(Map.Entry<String, Entry> e : this.cache.entrySet()) {
+      final Entry entry = e.getValue();
+      if(now < entry.expires) {
+        visitor.visit(e.getKey(), ByteBuffer.wrap(entry.value), entry.expires);
+      }
+    }
+  }
+
+  public void remove(String key) {
+    this.cache.remove(key);
+  }
+
+  public void clear() {
+    this.cache.clear();
+  }
+
+  public int size() {
+    return this.cache.size();
+  }
+}
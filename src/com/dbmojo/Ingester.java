@@ -0,0 +1,384 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.util.ArrayList;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/** Loads a stream of CSV or NDJSON rows into a table&#46; <br><br>
+ *  Every row is bound to the same prepared update, e&#46;g&#46; 
+ *  <i>INSERT INTO t (a,b) VALUES (?,?)</i> or a macro holding one&#46; 
+ *  Rows are parsed as they are read and run through a BatchPlanner 
+ *  <i>batchSize</i> rows at a time, each batch committed on its own, so
+ *  only one batch is ever held in memory&#46; <br><br>
+ *  A batch the database rejects is rolled back and retried one row at a 
+ *  time, and the rows that still fail are counted as rejects along with
+ *  rows that can't be parsed&#46; CSV rows are RFC 4180 style with 
+ *  optional double quotes&#46; NDJSON rows are either arrays of values or
+ *  objects whose values are picked by a list of column names&#46;
+ */
+public class Ingester {
+  
+  //How many rejected rows are described in the result
+  private final static int maxRejects = 100;
+  
+  private ConnectionPool pool;
+  private BatchOptions   options;
+  private String         query;
+  private boolean        ndjson;
+  private boolean        skipHeader;
+  private String[]       columns;
+  
+  private Connection           conn;
+  private int                  line;
+  private int                  start;
+  private long                 ingested;
+  private long                 rejected;
+  private JSONArray            rejects = new JSONArray();
+  private ArrayList<String[]>  rows    = new ArrayList<String[]>();
+  private ArrayList<Integer>   lines   = new ArrayList<Integer>();
+  
+  /** Load rows into <b>pool</b> with the update <b>query</b> (SQL or a 
+   *  macro)&#46; <b>ndjson</b> picks the format, <b>skipHeader</b> skips 
+   *  the first CSV line and <b>columns</b>, if not null, picks the values
+   *  of NDJSON objects in bind order&#46;
+   */
+  public Ingester(ConnectionPool pool, BatchOptions options, String query,
+                  boolean ndjson, boolean skipHeader, String[] columns) 
+                  throws Exception {
+    this.pool       = pool;
+    this.options    = options;
+    this.query      = MacroCache.resolve(query);
+    this.ndjson     = ndjson;
+    this.skipHeader = skipHeader;
+    this.columns    = columns;
+    
+    if(this.query == null) {
+      throw new QueryExecutorException("Macro '" + query + "' is missing");
+    } else if(this.query.equals("") || SqlUtil.isRead(this.query)) {
+      throw new QueryExecutorException("Ingest needs an update statement");
+    }
+  }
+  
+  /** Read <b>body</b> to the end and load every row&#46; Returns a single
+   *  result with the number of rows <i>ingested</i> and <i>rejected</i>,
+   *  the load rate and the first rejects&#46; If the database fails 
+   *  outright the result is an error reporting the rows ingested so 
+   *  far&#46;
+   */
+  public String ingest(Reader body) throws Exception {
+    final long start = System.currentTimeMillis();
+    String     error = null;
+    
+    try {
+      this.conn = this.pool.checkOut(true);
+      if(this.conn == null) {
+        throw new QueryExecutorException("Connection could not be checked out");
+      }
+      this.conn.setAutoCommit(false);
+      
+      final Reader    in     = new BufferedReader(body);
+      final RowReader reader = this.ndjson ? new JsonReader(in) : 
+                                             new CsvReader(in);
+      if(this.skipHeader && !this.ndjson) {
+        reader.next();
+      }
+      
+      for(String[] row = nextRow(reader); row != null; row = nextRow(reader)) {
+        this.rows.add(row);
+        this.lines.add(this.start);
+        if(this.rows.size() >= this.options.getBatchSize()) {
+          executeBatch();
+        }
+      }
+      executeBatch();
+    } catch(Exception e) {
+      error = e.toString();
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this, "Ingest stopped after " + this.ingested + 
+                           " rows - " + e, false);
+      }
+    } finally {
+      if(this.conn != null) {
+        this.pool.checkIn(this.conn);
+        this.conn = null;
+      }
+    }
+    
+    final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    
+    final JSONObject jObj = new JSONObject();
+    jObj.put("status",        error == null ? "success" : "error");
+    jObj.put("message",       error == null ? "" : error);
+    jObj.put("ingested",      this.ingested);
+    jObj.put("rejected",      this.rejected);
+    jObj.put("seconds",       elapsed / 1000.0);
+    jObj.put("rowsPerSecond", this.ingested * 1000 / elapsed);
+    jObj.put("rejects",       this.rejects);
+    
+    final JSONArray resArray = new JSONArray();
+    resArray.put(jObj);
+    return resArray.toString();
+  }
+  
+  //The next row that parses, counting the ones that don't as rejects
+  private String[] nextRow(RowReader reader) throws IOException {
+    while(true) {
+      try {
+        return reader.next();
+      } catch(JSONException je) {
+        reject(this.start, je.toString());
+      } catch(QueryExecutorException qe) {
+        reject(this.start, qe.getMessage());
+      }
+    }
+  }
+  
+  private void reject(int rLine, String message) {
+    this.rejected++;
+    if(this.rejects.length() < maxRejects) {
+      try {
+        final JSONObject rObj = new JSONObject();
+        rObj.put("line",    rLine);
+        rObj.put("message", message);
+        this.rejects.put(rObj);
+      } catch(JSONException je) {
+        //Can't happen for a line number and a String
+      }
+    }
+  }
+  
+  //Write and commit the rows gathered so far. If the batch fails every row
+  //is retried on its own to find the bad ones
+  private void executeBatch() throws Exception {
+    if(this.rows.isEmpty()) {
+      return;
+    }
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Ingesting batch of " + this.rows.size() + " rows");
+    }
+    
+    try {
+      run(this.rows);
+      this.ingested += this.rows.size();
+    } catch(Exception e) {
+      this.conn.rollback();
+      if(DebugLog.enabled) {
+        DebugLog.add(this, "Retrying batch row by row - " + e);
+      }
+      
+      for(int r=0; r < this.rows.size(); r++) {
+        final ArrayList<String[]> one = new ArrayList<String[]>();
+        one.add(this.rows.get(r));
+        try {
+          run(one);
+          this.ingested++;
+        } catch(Exception re) {
+          this.conn.rollback();
+          
+          //Don't blame the rows for a lost connection
+          if(!this.conn.isValid(5)) {
+            throw re;
+          }
+          reject(this.lines.get(r), re.toString());
+        }
+      }
+    } finally {
+      this.rows.clear();
+      this.lines.clear();
+    }
+  }
+  
+  private void run(ArrayList<String[]> batch) throws Exception {
+    final BatchPlanner planner = new BatchPlanner(this.conn, batch.size(),
+                                                  this.options);
+    try {
+      for(int r=0; r < batch.size(); r++) {
+        planner.add(r, this.query, batch.get(r));
+      }
+      planner.flush();
+      this.conn.commit();
+    } finally {
+      planner.close();
+    }
+  }
+  
+  //Source of rows. next() returns null at the end of the body and throws
+  //for a row that can't be parsed, after consuming it
+  private interface RowReader {
+    String[] next() throws IOException, JSONException, QueryExecutorException;
+  }
+  
+  //One JSON array or object per line
+  private class JsonReader implements RowReader {
+    private Reader        in;
+    private StringBuilder buf = new StringBuilder();
+    
+    JsonReader(Reader in) {
+      this.in = in;
+    }
+    
+    public String[] next() throws IOException, JSONException, 
+                                  QueryExecutorException {
+      String text;
+      do {
+        text = readLine();
+        if(text == null) {
+          return null;
+        }
+        line++;
+      } while(text.trim().length() == 0);
+      start = line;
+      
+      final Object row = new JSONTokener(text).nextValue();
+      if(row instanceof JSONArray) {
+        final JSONArray tRow   = (JSONArray)row;
+        final String[]  values = new String[tRow.length()];
+        for(int v=0; v < values.length; v++) {
+          values[v] = tRow.getString(v);
+        }
+        return values;
+      } else if(row instanceof JSONObject && columns != null) {
+        final JSONObject tRow   = (JSONObject)row;
+        final String[]   values = new String[columns.length];
+        for(int v=0; v < values.length; v++) {
+          values[v] = tRow.getString(columns[v]);
+        }
+        return values;
+      }
+      throw new QueryExecutorException("Rows must be JSON arrays, or objects"+
+                                       " when columns are given");
+    }
+    
+    private String readLine() throws IOException {
+      this.buf.setLength(0);
+      int c = this.in.read();
+      if(c < 0) {
+        return null;
+      }
+      while(c >= 0 && c != '\n') {
+        this.buf.append((char)c);
+        c = this.in.read();
+      }
+      return this.buf.toString();
+    }
+  }
+  
+  //Comma separated values, optionally in double quotes. A quoted value may
+  //hold commas, line breaks and "" for a quote
+  private class CsvReader implements RowReader {
+    private Reader            in;
+    private int               peek = -2;
+    private StringBuilder     buf  = new StringBuilder();
+    private ArrayList<String> row  = new ArrayList<String>();
+    
+    CsvReader(Reader in) {
+      this.in = in;
+    }
+    
+    public String[] next() throws IOException, QueryExecutorException {
+      int c = read();
+      
+      //Skip blank lines
+      while(c == '\r' || c == '\n') {
+        if(c == '\n') {
+          line++;
+        }
+        c = read();
+      }
+      if(c < 0) {
+        return null;
+      }
+      
+      line++;
+      start = line;
+      this.row.clear();
+      boolean bad = false;
+      while(true) {
+        this.buf.setLength(0);
+        if(c == '"') {
+          //Quoted value up to the closing quote
+          c = read();
+          while(true) {
+            if(c < 0) {
+              throw new QueryExecutorException("Unterminated quote");
+            } else if(c == '"') {
+              c = read();
+              if(c != '"') {
+                break;
+              }
+            } else if(c == '\n') {
+              line++;
+            }
+            this.buf.append((char)c);
+            c = read();
+          }
+          
+          //Anything between the closing quote and the next comma is an error
+          while(c >= 0 && c != ',' && c != '\n' && c != '\r') {
+            bad = true;
+            c = read();
+          }
+        } else {
+          while(c >= 0 && c != ',' && c != '\n' && c != '\r') {
+            this.buf.append((char)c);
+            c = read();
+          }
+        }
+        this.row.add(this.buf.toString());
+        
+        if(c != ',') {
+          break;
+        }
+        c = read();
+      }
+      
+      //Swallow the \n of a \r\n
+      if(c == '\r') {
+        c = read();
+        if(c != '\n') {
+          this.peek = c;
+        }
+      }
+      
+      if(bad) {
+        throw new QueryExecutorException("Unexpected text after a quoted value");
+      }
+      return this.row.toArray(new String[this.row.size()]);
+    }
+    
+    private int read() throws IOException {
+      if(this.peek != -2) {
+        final int c = this.peek;
+        this.peek = -2;
+        return c;
+      }
+      return this.in.read();
+    }
+  }
+}
@@ -20,98 +20,484 @@ along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
 */
 
 import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** A Clustered connection pool. This alow us to set multiple read
  *  targets and a single write target for all activity against
- *  one of these. */
+ *  one of these. <br><br>
+ *  Reads are balanced with the "power of two choices": two read members
+ *  are picked at random and the one with the lower expected wait (in flight
+ *  checkouts times recent latency) gets the connection. No cluster wide 
+ *  lock is taken on the read path. <br><br>
+ *  If read weights are set reads are instead spread in proportion to the
+ *  weights with a smooth weighted round robin. The round robin order is 
+ *  worked out once up front so picking a member is a single atomic 
+ *  increment. Members can also cap the number of reads in flight. <br><br>
+ *  A read member whose checkouts keep failing is taken out of rotation
+ *  (see ClusterMember) and brought back once a background probe succeeds&#46;
+ *  A read checkout tries at most <b>maxFailover</b> members and can
+ *  optionally fall back to the write member. <br><br>
+ *  Reads can ask for read-your-writes consistency by passing the commit
+ *  timestamp of an earlier write. They are only routed to replicas whose
+ *  last measured replication lag shows they have caught up, or else to the 
+ *  write member. <br><br>
+ *  Reads can also be hedged. If the first member hasn't answered within the
+ *  hedge delay the same query set is sent to a second member and whichever
+ *  answers first wins, see QueryExecutor. */
 public class JDBCClusteredConnectionPool implements ConnectionPool {
-  private String                                    alias, writeToAlias;
-  private String[]                                  readFromAliases;
-  private int                                       connectionIdx;
-  private ConcurrentHashMap<String, ConnectionPool> connPools;
-  private ConcurrentHashMap<Connection, String>     checkedOutConns;
+  
+  //A connection that is currently checked out
+  private static class Checkout {
+    final ClusterMember member;
+    final long          start;
+    
+    Checkout(ClusterMember member, long start) {
+      this.member = member;
+      this.start  = start;
+    }
+  }
+  
+  private String                                    alias;
+  private ClusterMember                             writeTo;
+  private ClusterMember[]                           readFrom;
+  private ConcurrentHashMap<Connection, Checkout>   checkedOutConns;
+  private Random                                    random;
+  private int                                       failureThreshold = 3;
+  private int                                       probeInterval    = 5;
+  private String                                    probeQuery;
+  private int                                       maxFailover;
+  private boolean                                   fallbackToWriter;
+  private int[]                                     weightedOrder;
+  private AtomicInteger                             weightedIdx;
+  private int                                       lagInterval = 1;
+  private long                                      hedgeDelay;
+  private boolean                                   hedgeP95;
   
   /** Initialize a new Clustered Connection Pool */
   public JDBCClusteredConnectionPool(String alias, ConnectionPool writeTo, 
                                      ArrayList<ConnectionPool> readFrom) {
-                                         
-    this.connPools = new ConcurrentHashMap<String, ConnectionPool>();
-
-    //Add read aliases to the available connection pools
-    this.readFromAliases = new String[readFrom.size()];
+    
+    this.alias  = alias;
+    this.random = new Random();
+    
+    //The same alias can be both read from and written to so make sure
+    //it shares one set of statistics
+    ConcurrentHashMap<String, ClusterMember> members = 
+      new ConcurrentHashMap<String, ClusterMember>();
+    
+    //Add the write alias to the available members
+    this.writeTo = new ClusterMember(writeTo);
+    members.put(this.writeTo.getAlias(), this.writeTo);
+    
+    //Add read aliases to the available members
+    this.readFrom = new ClusterMember[readFrom.size()];
     for(int i=0; i < readFrom.size(); i++) {
-      final ConnectionPool tPool = readFrom.get(i);
-      this.readFromAliases[i] = tPool.getAlias();
-      this.connPools.put(this.readFromAliases[i], tPool);
-      
+      final ConnectionPool tPool   = readFrom.get(i);
+      ClusterMember        tMember = members.get(tPool.getAlias());
+      if(tMember == null) {
+        tMember = new ClusterMember(tPool);
+        members.put(tMember.getAlias(), tMember);
+      }
+      this.readFrom[i] = tMember;
     }
     
-    //Add the write alias to the available connection pools
-    this.writeToAlias = writeTo.getAlias();
-    this.connPools.put(this.writeToAlias, writeTo);
-    
     //Initialize the Map for checked out connections
-    this.checkedOutConns = new ConcurrentHashMap<Connection, String>();
+    this.checkedOutConns = new ConcurrentHashMap<Connection, Checkout>();
+    this.maxFailover     = this.readFrom.length;
   }
-
-  /** Check out a Connection from the cluster. The connections will
-   *  be balanced in a Round Robin fashion across all read aliases.
-   *  If this is an update checkout then use the update alias. */
-  public synchronized Connection checkOut(boolean update) throws Exception { 
-    String checkOutAlias;
+  
+  /** Open a member's circuit after <b>failureThreshold</b> consecutive 
+   *  failed checkouts and probe it every <b>probeInterval</b> seconds with
+   *  <b>probeQuery</b> (if not null) until it recovers */
+  public void setHealthCheck(int failureThreshold, int probeInterval, 
+                             String probeQuery) {
+    this.failureThreshold = failureThreshold;
+    this.probeInterval    = probeInterval;
+    this.probeQuery       = probeQuery;
+  }
+  
+  /** Try at most <b>maxFailover</b> read members per checkout. If none of
+   *  them can be used and <b>fallbackToWriter</b> is set read from the 
+   *  write member instead */
+  public void setFailover(int maxFailover, boolean fallbackToWriter) {
+    this.maxFailover      = maxFailover;
+    this.fallbackToWriter = fallbackToWriter;
+  }
+  
+  /** Spread reads in proportion to <b>weights</b> (one per read member, in
+   *  the order they were passed to the constructor) instead of by latency. 
+   *  A weight of 0 takes the member out of the read rotation */
+  public void setReadWeights(int[] weights) {
+    final int count = this.readFrom.length;
+    int       total = 0;
+    int       gcd   = 0;
+    for(int i=0; i < count; i++) {
+      total += weights[i];
+      gcd    = weights[i] > 0 ? gcd(gcd, weights[i]) : gcd;
+    }
+    
+    //Smooth weighted round robin. Every turn each member gains its weight
+    //and the member with the most gets picked and pays back the total.
+    final int[] order   = new int[total / gcd];
+    final int[] current = new int[count];
+    for(int o=0; o < order.length; o++) {
+      int best = -1;
+      for(int i=0; i < count; i++) {
+        current[i] += weights[i] / gcd;
+        if(weights[i] > 0 && (best < 0 || current[i] > current[best])) {
+          best = i;
+        }
+      }
+      current[best] -= total / gcd;
+      order[o]       = best;
+    }
+    
+    this.weightedIdx   = new AtomicInteger();
+    this.weightedOrder = order;
+  }
+  
+  /** Cap the number of reads in flight per read member, 0 means no cap */
+  public void setMaxConcurrency(int[] maxConcurrency) {
+    for(int i=0; i < this.readFrom.length; i++) {
+      this.readFrom[i].setMaxConcurrency(maxConcurrency[i]);
+    }
+  }
+  
+  private static int gcd(int a, int b) {
+    return b == 0 ? a : gcd(b, a % b);
+  }
+  
+  /** Hedge reads that take longer than <b>hedgeDelay</b> millis by sending
+   *  them to a second member as well. If <b>hedgeP95</b> is set the delay is
+   *  instead the observed 95th percentile latency of the first member. */
+  public void setHedging(long hedgeDelay, boolean hedgeP95) {
+    this.hedgeDelay = hedgeDelay;
+    this.hedgeP95   = hedgeP95;
+  }
+  
+  /** Are reads against this cluster hedged? */
+  public boolean isHedged() {
+    return (this.hedgeDelay > 0 || this.hedgeP95) && this.readFrom.length > 1;
+  }
+  
+  /** How long to wait on <b>member</b> before hedging a read (millis) */
+  public long getHedgeDelay(ClusterMember member) {
+    return this.hedgeP95 && member != null ? 
+           member.getLatencyPercentile(95) : this.hedgeDelay;
+  }
+  
+  /** Return the member a checked out Connection belongs to */
+  public ClusterMember getMember(Connection conn) {
+    final Checkout checkout = this.checkedOutConns.get(conn);
+    return checkout != null ? checkout.member : null;
+  }
+  
+  /** Measure replication lag with <b>lagQueries</b> (one per read member, 
+   *  null for members without one) every <b>lagInterval</b> seconds */
+  public void setLagQueries(String[] lagQueries, int lagInterval) {
+    for(int i=0; i < this.readFrom.length; i++) {
+      if(lagQueries[i] != null && !lagQueries[i].equals("")) {
+        this.readFrom[i].setLagQuery(lagQueries[i]);
+      }
+    }
+    this.lagInterval = lagInterval;
+  }
+  
+  /** Start probing members whose circuit is open and measuring replication
+   *  lag */
+  public void startHealthChecks(ScheduledExecutorService scheduler) {
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        for(ClusterMember member : readFrom) {
+          if(member.isAvailable() && member.getLagQuery() != null) {
+            measureLag(member);
+          }
+        }
+      }
+    }, 0, this.lagInterval, TimeUnit.SECONDS);
+    
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        for(ClusterMember member : readFrom) {
+          if(!member.isAvailable()) {
+            probe(member);
+          }
+        }
+      }
+    }, this.probeInterval, this.probeInterval, TimeUnit.SECONDS);
+  }
+  
+  private void measureLag(ClusterMember member) {
+    final long start = System.currentTimeMillis();
+    Connection conn  = null;
+    try {
+      conn = member.getPool().checkOut(false);
+      if(conn == null) {
+        return;
+      }
       
-    if(update) {
-      checkOutAlias = this.writeToAlias;
-    } else {
-      checkOutAlias = this.readFromAliases[this.connectionIdx];
+      final Statement stmt = conn.createStatement();
+      try {
+        final ResultSet rset = stmt.executeQuery(member.getLagQuery());
+        if(rset.next()) {
+          final double lag = rset.getDouble(1);
+          if(!rset.wasNull()) {
+            member.setLag((long)(lag * 1000), start);
+          }
+        }
+        rset.close();
+      } finally {
+        stmt.close();
+      }
+    } catch(Exception e) {
+      if(DebugLog.enabled) {
+        DebugLog.add(this, "Lag query failed for member '" + 
+                           member.getAlias() + "' of cluster '" + 
+                           this.alias + "' - " + e);
+      }
+    } finally {
+      if(conn != null) {
+        member.getPool().checkIn(conn);
+      }
+    }
+  }
+  
+  private void probe(ClusterMember member) {
+    Connection conn = null;
+    try {
+      conn = member.getPool().checkOut(false);
+      if(conn == null) {
+        return;
+      }
       
-      //Round Robin Load Balancing
-      if(this.connectionIdx >= this.readFromAliases.length-1) {
-        this.connectionIdx = 0;
-      } else {
-        this.connectionIdx++;
-      }      
+      if(this.probeQuery != null && !this.probeQuery.equals("")) {
+        final Statement stmt = conn.createStatement();
+        try {
+          stmt.execute(this.probeQuery);
+        } finally {
+          stmt.close();
+        }
+      }
+      
+      member.reset();
+      if(DebugLog.enabled) {
+        DebugLog.add(this, "Member '" + member.getAlias() + 
+                           "' is back in rotation for cluster '" + 
+                           this.alias + "'");
+      }
+    } catch(Exception e) {
+      if(DebugLog.enabled) {
+        DebugLog.add(this, "Probe failed for member '" + member.getAlias() +
+                           "' of cluster '" + this.alias + "' - " + e);
+      }
+    } finally {
+      if(conn != null) {
+        member.getPool().checkIn(conn);
+      }
+    }
+  }
+
+  /** Check out a Connection from the cluster. Reads are balanced across
+   *  all read aliases, see pickReadMember(). If this is an update checkout 
+   *  then use the update alias. <br><br>
+   *  A null connection is returned if every member tried is busy. If the
+   *  members failed instead an Exception is thrown. */
+  public Connection checkOut(boolean update) throws Exception { 
+    return checkOut(update, 0);
+  }
+  
+  /** Check out a read Connection from a member that has applied every write
+   *  committed up to <b>consistentAfter</b> (millis), falling back to the
+   *  write member if no replica has caught up. */
+  public Connection checkOut(boolean update, 
+                             long consistentAfter) throws Exception { 
+    if(update) {
+      return checkOut(this.writeTo, true);
+    }
+    return checkOutRead(new boolean[this.readFrom.length], consistentAfter);
+  }
+  
+  /** Check out a read Connection from any member other than <b>exclude</b>.
+   *  Used to hedge a slow read, so there is no fallback to the write member
+   *  and null is returned if no other member can be used. */
+  public Connection checkOutExcluding(ClusterMember exclude) {
+    boolean[] tried = new boolean[this.readFrom.length];
+    for(int i=0; i < this.readFrom.length; i++) {
+      tried[i] = this.readFrom[i] == exclude;
     }
-        
-    //Grab the connection for the correct read/write alias
-    Connection conn;
     
     try {
-      conn = this.connPools.get(checkOutAlias).checkOut(update);
+      return checkOutRead(tried, 0, false);
     } catch(Exception e) {
-      conn = null;
+      return null;
+    }
+  }
+  
+  private Connection checkOutRead(boolean[] tried, 
+                                  long consistentAfter) throws Exception {
+    return checkOutRead(tried, consistentAfter, 
+                        this.fallbackToWriter || consistentAfter > 0);
+  }
+  
+  //Failover to another read member if the connection can't be had
+  private Connection checkOutRead(boolean[] tried, long consistentAfter,
+                                  boolean fallback) throws Exception {
+    boolean   busy   = false;
+    Exception failed = null;
+    
+    for(int attempt=0; attempt < this.maxFailover; attempt++) {
+      final int idx = pickReadMember(tried, consistentAfter);
+      if(idx < 0) {
+        break;
+      }
+      tried[idx] = true;
+      
+      final ClusterMember member = this.readFrom[idx];
+      try {
+        final Connection conn = checkOut(member, false);
+        if(conn != null) {
+          member.succeeded();
+          return conn;
+        }
+        busy = true;
+      } catch(Exception e) {
+        failed = e;
+        if(member.failed(this.failureThreshold) && ErrorLog.enabled) {
+          ErrorLog.add(this, "Member '" + member.getAlias() + 
+                             "' taken out of rotation for cluster '" + 
+                             this.alias + "' - " + e, false);
+        }
+      }
+    }
+    
+    //Members that are only skipped because they are at their concurrency
+    //cap are busy, not failing
+    for(ClusterMember member : this.readFrom) {
+      busy = busy || (member.isAvailable() && member.isAtCapacity());
     }
-        
-    //Failover to the next read alias if the connection is null
-    //If this is a write alias then go ahead and return a null connection
-    if(conn == null && !update) {
-      return this.checkOut(false);
-    } 
     
-    //Keep track of the connections checkedOut so we can return them
-    //to the appropriate connection pools
-    this.checkedOutConns.put(conn, checkOutAlias);
+    if(fallback) {
+      final Connection conn = checkOut(this.writeTo, false);
+      if(conn != null || busy) {
+        return conn;
+      }
+    }
     
-    checkOutAlias = null;
+    if(busy) {
+      return null;
+    }
     
+    throw new Exception("No read member is available for cluster '" + 
+                        this.alias + "'" + 
+                        (failed != null ? " - " + failed : ""));
+  }
+  
+  //Grab the connection for a member and keep track of the connections 
+  //checked out so we can return them to the appropriate connection pools.
+  //The member's slot is reserved first so two threads can't both take the
+  //last one, and given back if no connection is had
+  private Connection checkOut(ClusterMember member, 
+                              boolean update) throws Exception {
+    if(!member.tryAcquire()) {
+      return null;
+    }
+    
+    Connection conn = null;
+    try {
+      conn = member.getPool().checkOut(update);
+    } finally {
+      if(conn == null) {
+        member.release();
+      }
+    }
+    
+    if(conn != null) {
+      this.checkedOutConns.put(conn, 
+                               new Checkout(member, System.currentTimeMillis()));
+    }
     return conn;
   }
   
+  //Pick the next read member that is in rotation, under its concurrency 
+  //cap and not yet tried. Returns -1 if no member is left.
+  private int pickReadMember(boolean[] tried, long consistentAfter) {
+    if(this.weightedOrder != null) {
+      return pickWeightedReadMember(tried, consistentAfter);
+    }
+    
+    int[] candidates = new int[this.readFrom.length];
+    int   count      = 0;
+    for(int i=0; i < this.readFrom.length; i++) {
+      if(isCandidate(i, tried, consistentAfter)) {
+        candidates[count++] = i;
+      }
+    }
+    
+    if(count <= 1) {
+      return count == 1 ? candidates[0] : -1;
+    }
+    
+    //Power of two choices. Pick two distinct members at random and keep the 
+    //one with the lowest expected wait
+    final int a = this.random.nextInt(count);
+    int       b = this.random.nextInt(count - 1);
+    if(b >= a) {
+      b++;
+    }
+    
+    final ClusterMember mA = this.readFrom[candidates[a]];
+    final ClusterMember mB = this.readFrom[candidates[b]];
+    return mA.getScore() <= mB.getScore() ? candidates[a] : candidates[b];
+  }
+  
+  //Walk the precomputed weighted order from the next slot until a usable
+  //member turns up
+  private int pickWeightedReadMember(boolean[] tried, long consistentAfter) {
+    final int[] order = this.weightedOrder;
+    final int   start = this.weightedIdx.getAndIncrement() & Integer.MAX_VALUE;
+    for(int o=0; o < order.length; o++) {
+      final int idx = order[(start + o) % order.length];
+      if(isCandidate(idx, tried, consistentAfter)) {
+        return idx;
+      }
+    }
+    return -1;
+  }
+  
+  private boolean isCandidate(int idx, boolean[] tried, long consistentAfter) {
+    final ClusterMember member = this.readFrom[idx];
+    return !tried[idx] && member.isAvailable() && !member.isAtCapacity() &&
+           (consistentAfter <= 0 || member.isCaughtUp(consistentAfter));
+  }
+  
   /** Check a Connection back into the correct Connection
    *  pool. */
-  public synchronized void checkIn(Connection t) {
+  public void checkIn(Connection t) {
     if(t != null) {
-      final String tAlias = checkedOutConns.get(t);
-      connPools.get(tAlias).checkIn(t);
+      final Checkout checkout = checkedOutConns.remove(t);
+      if(checkout != null) {
+        checkout.member.checkedIn(System.currentTimeMillis() - checkout.start);
+        checkout.member.getPool().checkIn(t);
+      }
     } else {
       //Could not check connection back in
     }
   } 
   
+  /** Return the members reads are balanced across */
+  public ClusterMember[] getReadMembers() {
+    return this.readFrom;
+  }
+  
   /** Return the alias for the Clustered Connection Pool */
   public String getAlias() {
     return this.alias;
   }
-}
\ No newline at end of file
+}
@@ -181,9 +181,39 @@ public class JDBCConnectionPool implements ConnectionPool {
   }
   
   /**
-   *  Attempt to return a connection to the pool.
+   *  Attempt to return a connection to the pool. Connections left in manual
+   *  commit mode are rolled back and put back into auto commit so the next 
+   *  borrower doesn't run inside a transaction that is never ended. A 
+   *  connection that can't be reset is closed instead.
    */
-  public synchronized void checkIn(Connection t) {
+  public void checkIn(Connection t) {
+    if(t != null && !reset(t)) {
+      synchronized(this) {
+        locked.remove(t);
+      }
+      expire(t);
+      return;
+    }
+    release(t);
+  }
+  
+  private boolean reset(Connection t) {
+    try {
+      if(!t.getAutoCommit()) {
+        t.rollback();
+        t.setAutoCommit(true);
+      }
+      return true;
+    } catch(SQLException e) {
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this,"Cannot reset connection for alias '"+this.alias+
+                          "' - " + e, false); 
+      }
+      return false;
+    }
+  }
+  
+  private synchronized void release(Connection t) {
     if(t != null) {
       locked.remove(t);
       unlocked.put(t, System.currentTimeMillis());
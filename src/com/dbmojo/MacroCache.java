@@ -93,6 +93,13 @@ public class MacroCache {
     return MacroCache.cache.get(macroKey);
   }
   
+  /** If <b>query</b> is a macro key return the macro, otherwise return the
+   *  query unchanged&#46; Returns null for a macro key that isn't cached&#46;
+   */
+  public static String resolve(String query) {
+    return query.startsWith("$") ? MacroCache.cache.get(query) : query;
+  }
+  
   /** Return the entire MacroCache */
   public static ConcurrentHashMap<String,String> getAll() {
     return MacroCache.cache;
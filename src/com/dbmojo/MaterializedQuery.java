@@ -0,0 +1,131 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONException;
+
+/** A query (or macro) that is refreshed on a schedule and only ever served
+ *  from memory&#46; Materialized queries are defined in the config file:<br>
+ *  <br><i>materialized: [{name: "daily_totals", alias: "mysql",
+ *  query: "$reports.daily_totals", refresh: 30}]</i><br><br>
+ *  and requested with <i>/?materialized=daily_totals</i>&#46; The last 
+ *  successful result is kept pre-encoded (and pre-gzipped) so requests never
+ *  touch the database&#46;
+ */
+public class MaterializedQuery {
+
+  private final String         name, alias, json;
+  private final int            refresh;
+  private final ConnectionPool pool;
+  
+  private volatile byte[]      body, gzipBody;
+  private volatile long        lastRefresh, lastDuration;
+  private volatile String      lastError = "";
+
+  /** Build a materialized query from its config entry */
+  public MaterializedQuery(JSONObject config, 
+                           ConnectionPool pool) throws JSONException {
+    JSONObject tQuery = new JSONObject();
+    tQuery.put("query", config.getString("query"));
+    if(config.optJSONArray("values") != null) {
+      tQuery.put("values", config.getJSONArray("values"));
+    }
+    
+    this.name    = config.getString("name");
+    this.alias   = config.getString("alias");
+    this.refresh = config.optInt("refresh", 60);
+    this.json    = new JSONArray().put(tQuery).toString();
+    this.pool    = pool;
+  }
+  
+  /** Re-run the query and swap in the new result&#46; If the query fails
+   *  the previous result is kept and the error is recorded&#46;
+   */
+  public void refresh() {
+    final long start = System.currentTimeMillis();
+    
+    try {
+      final QueryExecutor ex      = new QueryExecutor(this.pool);
+      final String        results = ex.execute(this.json, false);
+      
+      if(ex.hasErrors()) {
+        throw new QueryExecutorException(
+          new JSONArray(results).getJSONObject(0).optString("message"));
+      }
+      
+      final byte[] tBody = results.getBytes("UTF-8");
+      this.gzipBody      = Util.gzip(tBody);
+      this.body          = tBody;
+      this.lastRefresh   = System.currentTimeMillis();
+      this.lastError     = "";
+    } catch(Exception e) {
+      this.lastError = e.toString();
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this, "Materialized query '" + this.name + 
+                           "' could not be refreshed - " + e, false);
+      }
+    } finally {
+      this.lastDuration = System.currentTimeMillis() - start;
+    }
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Materialized query '" + this.name + 
+                         "' refreshed in " + this.lastDuration + "ms");
+    }
+  }
+  
+  /** The encoded result of the last successful refresh or null if there
+   *  hasn't been one yet */
+  public byte[] getBody(boolean gzip) {
+    return gzip ? this.gzipBody : this.body;
+  }
+  
+  public String getName() {
+    return this.name;
+  }
+  
+  /** Refresh interval in seconds */
+  public int getRefresh() {
+    return this.refresh;
+  }
+  
+  /** Milliseconds since the last successful refresh */
+  public long getStaleness() {
+    return this.lastRefresh > 0 ? 
+           System.currentTimeMillis() - this.lastRefresh : -1;
+  }
+  
+  /** Status of this materialized query for the admin endpoint */
+  public JSONObject getStatus() throws JSONException {
+    JSONObject status = new JSONObject();
+    status.put("name",        this.name);
+    status.put("alias",       this.alias);
+    status.put("refresh",     this.refresh);
+    status.put("lastRefresh", this.lastRefresh);
+    status.put("duration",    this.lastDuration);
+    status.put("staleness",   getStaleness());
+    status.put("status",      this.lastError.equals("") ? "success" : "error");
+    status.put("message",     this.lastError);
+    return status;
+  }
+}
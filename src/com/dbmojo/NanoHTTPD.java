@@ -3,6 +3,8 @@ package com.dbmojo;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -40,6 +42,7 @@ import java.util.concurrent.Executors;
  *    <li> Released as open source, Modified BSD licence </li>
  *    <li> No fixed config files, logging, authorization etc. (Implement yourself if you need them.) </li>
  *    <li> Supports parameter parsing of GET and POST methods </li>
+ *    <li> POST bodies can be streamed instead, see isStreaming() </li>
  *    <li> Supports both dynamic content and file serving </li>
  *    <li> Never caches anything </li>
  *    <li> Doesn't limit bandwidth, request time</li>
@@ -67,7 +70,9 @@ public class NanoHTTPD {
     public String      status;
     public String      mimeType;
     public InputStream data;
+    public ByteBuffer  body;
     public Properties  header = new Properties();	
+    public Runnable    onSent;
 
     public Response() {
       this.status = HTTP_OK;
@@ -84,6 +89,17 @@ public class NanoHTTPD {
       this.mimeType = mimeType;
       this.data     = new ByteArrayInputStream( txt.getBytes());
     }
+
+    //A fully encoded body that is written to the socket in a single call
+    public Response( String status, String mimeType, byte[] body ) {
+      this( status, mimeType, ByteBuffer.wrap( body ));
+    }
+
+    public Response( String status, String mimeType, ByteBuffer body ) {
+      this.status   = status;
+      this.mimeType = mimeType;
+      this.body     = body;
+    }
     
     public void addHeader( String name, String value ) {
       header.put(name, value);
@@ -179,6 +195,88 @@ public class NanoHTTPD {
     return new Response(HTTP_OK,MIME_PLAINTEXT,"No implemented");
   }  
   
+  /**
+   * Should the POST body of a request to this uri be handed to serveStream()
+   * as it arrives instead of being read up front and decoded into parms?
+   */
+  public boolean isStreaming(String uri, String method) {
+    return false;
+  }
+  
+  /**
+   * Serve a streaming request. Only the parameters in the URI are decoded,
+   * the body is read from the given Reader (UTF-8, ends after Content-Length
+   * bytes).
+   */
+  public Response serveStream(String clientIp, String uri, String method, Properties header, Properties parms, Reader body ) {
+    return new Response(HTTP_OK,MIME_PLAINTEXT,"No implemented");
+  }
+  
+  /**
+   * Ends a request body after its Content-Length bytes so it is decoded
+   * from exactly the bytes that were sent, whatever they hold.
+   */
+  private static class BodyInputStream extends FilterInputStream {
+    private long remaining;
+    
+    public BodyInputStream( InputStream in, long size ) {
+      super( in );
+      this.remaining = size;
+    }
+    
+    public int read() throws IOException {
+      if ( remaining <= 0 ) {
+        return -1;
+      }
+      int b = in.read();
+      if ( b >= 0 ) {
+        remaining--;
+      }
+      return b;
+    }
+    
+    public int read( byte[] b, int off, int len ) throws IOException {
+      if ( remaining <= 0 ) {
+        return -1;
+      }
+      int n = in.read( b, off, (int)Math.min( len, remaining ));
+      if ( n > 0 ) {
+        remaining -= n;
+      }
+      return n;
+    }
+    
+    public int available() throws IOException {
+      return (int)Math.min( in.available(), remaining );
+    }
+    
+    public void close() {
+    }
+  }
+  
+  /**
+   * Reads one CRLF or LF terminated line of UTF-8 from the raw stream,
+   * leaving everything after it unread. Returns null at the end of the stream.
+   */
+  private static String readLine( InputStream in ) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream( 128 );
+    int b = in.read();
+    if ( b < 0 ) {
+      return null;
+    }
+    while ( b >= 0 && b != '\n' ) {
+      line.write( b );
+      b = in.read();
+    }
+    
+    byte[] bytes = line.toByteArray();
+    int    len   = bytes.length;
+    if ( len > 0 && bytes[len - 1] == '\r' ) {
+      len--;
+    }
+    return new String( bytes, 0, len, "UTF-8" );
+  }
+  
   /**
    * Handles one session, i.e. parses the HTTP request
    * and returns the response.
@@ -198,10 +296,12 @@ public class NanoHTTPD {
         
         if(is == null) return;
         
-        BufferedReader in = new BufferedReader( new InputStreamReader( is ));
+        // Headers are read straight off the byte stream so the body can be
+        // bounded by its Content-Length in bytes before it is decoded
+        InputStream in = new BufferedInputStream( is );
         
         // Read the request line
-        String inLine = in.readLine();
+        String inLine = readLine( in );
         if (inLine == null) return;
         StringTokenizer st = new StringTokenizer( inLine );
         if ( !st.hasMoreTokens()) {
@@ -230,12 +330,38 @@ public class NanoHTTPD {
         // case insensitive and vary by client.
         Properties header = new Properties();
         if ( st.hasMoreTokens()) {
-          String line = in.readLine();
-          while ( line.trim().length() > 0 ) {
+          String line = readLine( in );
+          while ( line != null && line.trim().length() > 0 ) {
             int p = line.indexOf( ':' );
             header.put( line.substring(0,p).trim().toLowerCase(), line.substring(p+1).trim());
-            line = in.readLine();
+            line = readLine( in );
+          }
+        }
+        
+        // Streamed bodies are left for the subclass to read as they arrive
+        if ( method.equalsIgnoreCase( "POST" ) && isStreaming( uri, method )) {
+          long size = 0x7FFFFFFFFFFFFFFFl;
+          String contentLength = header.getProperty("content-length");
+          if (contentLength != null) {
+            try { size = Long.parseLong(contentLength); }
+            catch (NumberFormatException ex) {}
+          }
+          
+          if ( "100-continue".equalsIgnoreCase( header.getProperty( "expect" ))) {
+            OutputStream out = mySocket.getOutputStream();
+            out.write( "HTTP/1.1 100 Continue\r\n\r\n".getBytes());
+            out.flush();
+          }
+          
+          Response r = serveStream( clientAddress.getHostAddress(), uri, method, header, parms, 
+                                   new InputStreamReader( new BodyInputStream( in, size ), "UTF-8" ));
+          if ( r == null ) {
+            sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: serveStream() returned a null response." );
+          } else {
+            sendResponse( r.status, r.mimeType, r.header, r.data, r.body );
           }
+          in.close();
+          return;
         }
         
         // If the method is POST, there may be parameters
@@ -248,15 +374,13 @@ public class NanoHTTPD {
             catch (NumberFormatException ex) {}
           }
           
+          Reader body     = new InputStreamReader( new BodyInputStream( in, size ), "UTF-8" );
           String postLine = "";
           char   buf[]    = new char[512];
-          int    read     = in.read(buf);
-          while ( read >= 0 && size > 0 && !postLine.endsWith("\r\n") ) {
-            size -= read;
+          int    read     = body.read(buf);
+          while ( read >= 0 && !postLine.endsWith("\r\n") ) {
             postLine += String.valueOf(buf, 0, read);
-            if ( size > 0 ) {
-              read = in.read(buf);
-            }
+            read = body.read(buf);
           }
           
           postLine = postLine.trim();
@@ -268,7 +392,14 @@ public class NanoHTTPD {
         if ( r == null ) {
           sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Serve() returned a null response." );
         } else {
-          sendResponse( r.status, r.mimeType, r.header, r.data );
+          try {
+            sendResponse( r.status, r.mimeType, r.header, r.data, r.body );
+          } finally {
+            // Let the subclass know the body isn't needed anymore
+            if ( r.onSent != null ) {
+              r.onSent.run();
+            }
+          }
         }
 
         in.close();
@@ -338,14 +469,14 @@ public class NanoHTTPD {
      * throws InterruptedException to stop furhter request processing.
      */
     private void sendError( String status, String msg ) throws InterruptedException {
-      sendResponse( status, MIME_PLAINTEXT, null, new ByteArrayInputStream( msg.getBytes()));
+      sendResponse( status, MIME_PLAINTEXT, null, null, ByteBuffer.wrap( msg.getBytes()));
       throw new InterruptedException();
     }
 
     /**
      * Sends given response to the socket.
      */
-    private void sendResponse(String status, String mime, Properties header, InputStream data) {
+    private void sendResponse(String status, String mime, Properties header, InputStream data, ByteBuffer body) {
       try {
         if ( status == null ) {
           throw new Error("sendResponse(): Status can't be null.");
@@ -375,7 +506,13 @@ public class NanoHTTPD {
         pw.print("\r\n");
         pw.flush();
 
-        if ( data != null ) { 
+        if ( body != null ) {
+          if ( body.hasArray()) {
+            out.write( body.array(), body.arrayOffset() + body.position(), body.remaining());
+          } else {
+            Channels.newChannel( out ).write( body.duplicate());
+          }
+        } else if ( data != null ) { 
           byte[] buff = new byte[2048];
           while (true) {
             int read = data.read( buff, 0, 2048 );
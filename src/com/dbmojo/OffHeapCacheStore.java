@@ -0,0 +1,259 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** A CacheStore that keeps serialized entries outside of the Java heap&#46;
+ *  <br><br>The configured capacity is split into fixed size slabs which are
+ *  either direct ByteBuffers or regions of a memory-mapped file&#46; Only an
+ *  index of (slab, offset, length) lives on the heap&#46; Entries are
+ *  appended to the current slab, when it is full the next slab in the ring
+ *  is recycled and every entry it held is evicted&#46; <br><br>
+ *  Cache hits are leased as read-only views of the slab, so the bytes are
+ *  written to the socket straight from off heap memory&#46; A slab with 
+ *  outstanding leases is skipped when picking the next one to recycle&#46;
+ */
+public class OffHeapCacheStore implements CacheStore {
+
+  private static class Slot {
+    final int  slab, offset, length, generation;
+    final long expires;
+
+    Slot(int slab, int offset, int length, int generation, long expires) {
+      this.slab       = slab;
+      this.offset     = offset;
+      this.length     = length;
+      this.generation = generation;
+      this.expires    = expires;
+    }
+  }
+
+  private ByteBuffer[]                    slabs;
+  private int[]                           generations;
+  private ReentrantReadWriteLock[]        locks;
+  private AtomicInteger[]                 readers;
+  private ArrayList<ArrayList<String>>    slabKeys;
+  private ConcurrentHashMap<String, Slot> index;
+  private int                             slabSize, current, position;
+  private RandomAccessFile                mappedFile;
+
+  /** Create a store of roughly <b>capacity</b> bytes split into slabs of
+   *  <b>slabSize</b> bytes&#46; If <b>mappedPath</b> is not empty the slabs
+   *  are mapped from that file, otherwise direct buffers are allocated&#46;
+   */
+  public OffHeapCacheStore(long capacity, int slabSize, 
+                           String mappedPath) throws IOException {
+    final int slabCount = (int)Math.max(2, (capacity + slabSize - 1) / slabSize);
+    
+    this.slabSize    = slabSize;
+    this.slabs       = new ByteBuffer[slabCount];
+    this.generations = new int[slabCount];
+    this.locks       = new ReentrantReadWriteLock[slabCount];
+    this.readers     = new AtomicInteger[slabCount];
+    this.slabKeys    = new ArrayList<ArrayList<String>>();
+    this.index       = new ConcurrentHashMap<String, Slot>();
+    
+    FileChannel channel = null;
+    if(mappedPath != null && !mappedPath.equals("")) {
+      this.mappedFile = new RandomAccessFile(mappedPath, "rw");
+      this.mappedFile.setLength((long)slabCount * slabSize);
+      channel = this.mappedFile.getChannel();
+    }
+    
+    for(int s=0; s < slabCount; s++) {
+      this.locks[s]   = new ReentrantReadWriteLock();
+      this.readers[s] = new AtomicInteger();
+      this.slabKeys.add(new ArrayList<String>());
+      if(channel != null) {
+        this.slabs[s] = channel.map(FileChannel.MapMode.READ_WRITE, 
+                                    (long)s * slabSize, slabSize);
+      } else {
+        this.slabs[s] = ByteBuffer.allocateDirect(slabSize);
+      }
+    }
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Off heap cache initialized with " + slabCount + 
+                         " slabs of " + slabSize + " bytes");
+    }
+  }
+
+  public ByteBuffer get(String key) {
+    final CacheStore.Lease lease = lease(key);
+    if(lease == null) {
+      return null;
+    }
+    
+    try {
+      final ByteBuffer src   = lease.getValue();
+      final byte[]     value = new byte[src.remaining()];
+      src.get(value);
+      return ByteBuffer.wrap(value);
+    } finally {
+      lease.release();
+    }
+  }
+  
+  public CacheStore.Lease lease(String key) {
+    final Slot slot = this.index.get(key);
+    if(slot == null) {
+      return null;
+    }
+    
+    if(System.currentTimeMillis() >= slot.expires) {
+      this.index.remove(key, slot);
+      return null;
+    }
+    
+    //Register as a reader while making sure the slab hasn't been recycled
+    //already. Once registered it won't be until the lease is released
+    final ReentrantReadWriteLock.ReadLock lock = this.locks[slot.slab].readLock();
+    lock.lock();
+    try {
+      if(this.generations[slot.slab] != slot.generation) {
+        this.index.remove(key, slot);
+        return null;
+      }
+      this.readers[slot.slab].incrementAndGet();
+    } finally {
+      lock.unlock();
+    }
+    
+    final ByteBuffer view = this.slabs[slot.slab].duplicate();
+    view.limit(slot.offset + slot.length);
+    view.position(slot.offset);
+    
+    final ByteBuffer    value    = view.slice().asReadOnlyBuffer();
+    final AtomicInteger readers  = this.readers[slot.slab];
+    final AtomicBoolean released = new AtomicBoolean();
+    return new CacheStore.Lease() {
+      public ByteBuffer getValue() {
+        return value.duplicate();
+      }
+      
+      public long getExpires() {
+        return slot.expires;
+      }
+      
+      public void release() {
+        if(released.compareAndSet(false, true)) {
+          readers.decrementAndGet();
+        }
+      }
+    };
+  }
+
+  public void forEach(CacheStore.Visitor visitor) {
+    for(Map.Entry<String, Slot> e : this.index.entrySet()) {
+      final Slot       slot  = e.getValue();
+      final ByteBuffer value = get(e.getKey());
+      if(value != null) {
+        visitor.visit(e.getKey(), value, slot.expires);
+      }
+    }
+  }
+
+  public synchronized boolean put(String key, byte[] value, long expires) {
+    if(value.length > this.slabSize) {
+      return false;
+    }
+    
+    if(this.position + value.length > this.slabSize && !recycle()) {
+      return false;
+    }
+    
+    final ByteBuffer dst = this.slabs[this.current].duplicate();
+    dst.position(this.position);
+    dst.put(value);
+    
+    this.index.put(key, new Slot(this.current, this.position, value.length,
+                                 this.generations[this.current], expires));
+    this.slabKeys.get(this.current).add(key);
+    this.position += value.length;
+    
+    return true;
+  }
+  
+  //Make the next slab in the ring that isn't being read the current write
+  //target, evicting everything it held. False if every slab is being read
+  private boolean recycle() {
+    for(int i=1; i < this.slabs.length; i++) {
+      final int slab = (this.current + i) % this.slabs.length;
+      final ReentrantReadWriteLock.WriteLock lock = 
+        this.locks[slab].writeLock();
+      lock.lock();
+      try {
+        if(this.readers[slab].get() > 0) {
+          continue;
+        }
+        this.generations[slab]++;
+      } finally {
+        lock.unlock();
+      }
+      
+      //Only the keys written to this slab can point into it
+      for(String key : this.slabKeys.get(slab)) {
+        final Slot slot = this.index.get(key);
+        if(slot != null && slot.slab == slab) {
+          this.index.remove(key, slot);
+        }
+      }
+      this.slabKeys.get(slab).clear();
+      
+      this.current  = slab;
+      this.position = 0;
+      
+      if(DebugLog.enabled) {
+        DebugLog.add(this, "Off heap cache slab " + slab + " recycled");
+      }
+      return true;
+    }
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Every off heap cache slab is being read");
+    }
+    return false;
+  }
+
+  public void remove(String key) {
+    this.index.remove(key);
+  }
+
+  public synchronized void clear() {
+    this.index.clear();
+    for(ArrayList<String> keys : this.slabKeys) {
+      keys.clear();
+    }
+  }
+
+  public int size() {
+    return this.index.size();
+  }
+}
@@ -19,6 +19,7 @@ You should have received a copy of the GNU General Public License
 along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.PreparedStatement;
@@ -27,7 +28,16 @@ import java.sql.ResultSetMetaData;
 import org.json.JSONObject;
 import org.json.JSONArray;
 import org.json.JSONException;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -45,8 +55,9 @@ import java.util.*;
  *  <i>{query:"select sysdate from dual"}</i><br><br>
  *  <b>Prepared statement Query/Update</b><br>
  *  <i>{query:"select sysdate from dual where 1 = ?", values:[1]}</i><br><br>
- *  <b>Note:</b> <i>Update statements and query statements cannot be 
- *  mixed in the same set&#46;</i><br><br>
+ *  <b>Note:</b> <i>Queries may be mixed into an update set. They run in 
+ *  order on the<br>update's connection and transaction, so they see the 
+ *  updates before them&#46;</i><br><br>
  *  <b>Note:</b> <i>Each update set is treated as a single entity.<br>
  *  This means that if any update fails within a given update set the 
  *  update set<br> will stop executing and return an error message and all 
@@ -61,6 +72,18 @@ public class QueryExecutor {
   
   private ConnectionPool pool;
   private Connection     conn;
+  private boolean        errors;
+  private volatile boolean   cancelled;
+  private volatile Statement running;
+  private long           consistencyToken;
+  private int            parallel;
+  private int            bulk;
+  private int            commitEvery;
+  private boolean        skipErrors;
+  private BatchOptions   batchOptions = new BatchOptions();
+  private GroupCommitter groupCommitter;
+  private boolean        inGroup;
+  private Savepoint      groupSavepoint;
   
   /** Creae a new instance&#46; All statements will be executed against
    *  the passed ConnectionPool object instance&#46;
@@ -74,23 +97,35 @@ public class QueryExecutor {
     * an exception and bail
     */
   private void open(boolean update) throws Exception {
-    if(this.pool != null) {
-      this.conn = pool.checkOut(update);
+    if(this.pool != null && this.conn == null) {
+      this.conn = checkOut(update);
       if(this.conn == null) {
         while(this.conn == null) {
           Thread.yield();
-          this.conn = pool.checkOut(update);
+          this.conn = checkOut(update);
         }      
       }
     }
   }
   
+  //Reads carrying a consistency token have to go to a cluster member that
+  //has caught up with it
+  private Connection checkOut(boolean update) throws Exception {
+    if(!update && this.consistencyToken > 0 && 
+       this.pool instanceof JDBCClusteredConnectionPool) {
+      return ((JDBCClusteredConnectionPool)this.pool).checkOut(
+               false, this.consistencyToken);
+    }
+    return this.pool.checkOut(update);
+  }
+  
   /** Return the current connection to the connection pool
     * if possible.
     */
   private void close() {
     if(this.conn != null && this.pool != null) {
       this.pool.checkIn(this.conn);
+      this.conn = null;
     } else {
       //Probably want to know if this isn't true!!
     }
@@ -104,25 +139,60 @@ public class QueryExecutor {
    */
   public String execute(String reqStr, boolean update) throws Exception {
     
+    //Bulk update sets are split in chunks committed on their own
+    if(update && this.conn == null && this.bulk > 0) {
+      final JSONArray reqs = new JSONArray(reqStr);
+      if(reqs.length() > 0) {
+        return executeBulk(reqs);
+      }
+    }
+    
+    //Small update sets may share a transaction with other requests
+    if(update && this.conn == null && this.groupCommitter != null &&
+       this.commitEvery <= 0 &&
+       this.groupCommitter.accepts(reqStr)) {
+      return this.groupCommitter.submit(this, reqStr);
+    }
+    
+    //Independent reads may be spread over several connections
+    if(!update && this.conn == null && this.parallel > 1) {
+      final JSONArray reqs = new JSONArray(reqStr);
+      if(reqs.length() > 1) {
+        return executeParallel(reqs);
+      }
+    }
+    
+    //Reads against a hedged cluster may be raced across two members
+    if(!update && this.conn == null && this.consistencyToken <= 0 &&
+       this.pool instanceof JDBCClusteredConnectionPool &&
+       ((JDBCClusteredConnectionPool)this.pool).isHedged()) {
+      return executeHedged(reqStr);
+    }
+    
     if(DebugLog.enabled) {
       DebugLog.add(this,"Begin execute");
     }
       
+    this.errors = false;
+    
     String                           message      = "";    
     ArrayList<HashMap>               resultsList  = new ArrayList<HashMap>();
-    LinkedHashMap<String, 
-                  PreparedStatement> bpstmts      = null;
-    Statement                        bstmt        = null;    
+    BatchPlanner                     planner      = null;
+    boolean                          committed    = false;
+    int                              done         = 0;
     
     try {
       this.open(update);
             
-      if(update) { 
+      //Inside a group commit the transaction belongs to the GroupCommitter,
+      //this set only gets a savepoint to roll back to
+      if(update && this.inGroup) {
+        this.groupSavepoint = conn.setSavepoint();
+      } else if(update) { 
         conn.setAutoCommit(false);
       }
             
       final JSONArray reqs         = new JSONArray(reqStr);
-      final boolean   batchUpdates = reqs.length() > 1;      
             
       //Connection MUST be ready to go
       if(this.conn == null) {
@@ -134,8 +204,17 @@ public class QueryExecutor {
       if(rLen <= 0) {
         throw new QueryExecutorException("No queries specified");
       }
+      
+      if(update) {
+        planner = new BatchPlanner(this.conn, rLen, this.batchOptions);
+        planner.setSkipErrors(this.skipErrors);
+      }
             
       for(int r=0; r < rLen; r++) {
+        if(this.cancelled) {
+          throw new QueryExecutorException("Cancelled");
+        }
+        
         String           rMessage          = "";
         final JSONObject reqObj            = reqs.getJSONObject(r);
         JSONArray        tValues           = reqObj.optJSONArray("values");
@@ -147,67 +226,71 @@ public class QueryExecutor {
           values[v] = tValues.getString(v);
         }
         
-        String           query    = reqObj.getString("query");
-        final boolean    prepared = values != null;
+        String           query      = reqObj.getString("query");
+        final boolean    prepared   = tValues != null;
+        final boolean    returnKeys = reqObj.optBoolean("returnKeys");
 
         //Can't move forward without a query!
         if(query == null || query.equals("")) {
           throw new QueryExecutorException("Query is missing");
         }
         
-        //Here's where we need to do either an update or a query
-        if(update) {
-          if(batchUpdates) {
-            // This is NOT a prepared statement and we need to create a
-            // batch statement to add all non prepared statements to
-            if(!prepared && bstmt == null) {
-              bstmt = conn.createStatement();
-
-            // This IS a prepared statement and we need to create a
-            // ordered map of prepared statements so we can execute
-            // these statements together in order (sortof...)
-            } else if(prepared  && bpstmts == null ) {
-              bpstmts = new LinkedHashMap<String, PreparedStatement>();
-            }
-            
-            addBatchUpdate(this.conn, prepared, query, values, bstmt, bpstmts);
-          } else {
-            
-            // Single update query / prepared statement to execute
-            executeUpdate(this.conn, prepared, query, values);
+        //Swap in the macro if one was requested
+        final String resolved = MacroCache.resolve(query);
+        if(resolved == null && update && this.skipErrors) {
+          planner.fail(r, "Macro '"+query+"' is missing");
+          continue;
+        } else if(resolved == null) {
+          throw new QueryExecutorException("Macro '"+query+"' is missing");
+        }
+        query = resolved;
+        
+        //Here's where we need to do either an update or a query. Reads in
+        //an update set run in order on the same connection, so whatever
+        //has been batched so far has to be executed first
+        if(update && SqlUtil.isRead(query)) {
+          planner.flush();
+          
+          final Savepoint savepoint = this.skipErrors ? 
+                                      this.conn.setSavepoint() : null;
+          final HashMap   qObj      = executeQuery(this.conn, prepared, 
+                                                   query, values);
+          if("error".equals(qObj.get("status")) && savepoint != null) {
+            this.conn.rollback(savepoint);
+            planner.fail(r, (String)qObj.get("message"));
+          } else if("error".equals(qObj.get("status"))) {
+            throw new QueryExecutorException((String)qObj.get("message"));
+          } else if(savepoint != null) {
+            this.conn.releaseSavepoint(savepoint);
           }
+          resultsList.add(qObj);
+        } else if(update) {
+          planner.add(r, query, prepared ? values : null, returnKeys);
         } else {
           resultsList.add(executeQuery(this.conn, prepared, query, values));
         }
-      }
-      
-      //Execute Batch Updates
-      if(update && batchUpdates) {       
-        //Execute any prepared statement batches that have been gathered.
-        //If we have an SQL error and exception will be thrown
-        if(bpstmts != null && bpstmts.size() > 0) {
-          for(PreparedStatement p : bpstmts.values()) {
-            if(DebugLog.enabled) {
-              DebugLog.add(this,"Executing batch prepared statement");
-            }
-            
-            p.executeBatch();
-          }
-        }
-      
-        //Execute all the standard SQL in a batch. 
-        //If we have a SQL error an Exception will be thrown
-        if(bstmt != null) { 
+        
+        //Keep transactions of very large sets short
+        if(update && !this.inGroup && this.commitEvery > 0 && 
+           (r + 1) % this.commitEvery == 0 && r + 1 < rLen) {
+          planner.flush();
+          this.conn.commit();
+          done = r + 1;
           if(DebugLog.enabled) {
-            DebugLog.add(this,"Executing batch statement");
+            DebugLog.add(this, "Committed " + done + " statements");
           }
-          
-          bstmt.executeBatch();
         }
       }
       
+      //Execute whatever is left of the batched updates
       if(update) { 
-        this.conn.commit();
+        planner.flush();
+        if(this.inGroup) {
+          this.conn.releaseSavepoint(this.groupSavepoint);
+        } else {
+          this.conn.commit();
+        }
+        committed = true;
       }
   
     } catch(JSONException je) {
@@ -240,11 +323,24 @@ public class QueryExecutor {
             DebugLog.add(this, err);
           }
 
-          if(this.conn != null) {
+          if(this.conn != null && this.inGroup) {
+            //Without a savepoint the whole group has to go
+            if(this.groupSavepoint == null) {
+              throw e;
+            }
+            this.conn.rollback(this.groupSavepoint);
+          } else if(this.conn != null) {
             this.conn.rollback();
           }
 
-          resultsList.add(Util.getError(err));          
+          //Nothing read inside the rolled back transaction is valid. Tell
+          //the client where to resume if part of the set was committed
+          final HashMap eObj = Util.getError(err);
+          if(this.commitEvery > 0) {
+            eObj.put("committed", done);
+          }
+          resultsList.clear();
+          resultsList.add(eObj);          
       } else {
         final String err = e.toString();
         
@@ -256,63 +352,59 @@ public class QueryExecutor {
       }
       
     } finally {
-      //Cleanup batch statement (If applicable)
-      if(bstmt != null) {
-        try {
-          if(DebugLog.enabled) {
-            DebugLog.add(this,"Closing batch statement");
-          }
-          bstmt.close();
-        } catch(Exception se) {
-          String err = "Error closing batch statement - " + se.toString();
-          if(ErrorLog.enabled) {
-            ErrorLog.add(this, err, false);
-          }
-          resultsList.add(Util.getError(err));
-        }
+      //Cleanup the batch being gathered (If applicable)
+      if(planner != null) {
+        planner.close();
       }
-      
-      //Cleanup the batch prepared statement (If applicable)
-      if(bpstmts != null) {
-        for(PreparedStatement p : bpstmts.values()) {
-          try {
-            if(p != null) {
-              p.close();
-              if(DebugLog.enabled) {
-                DebugLog.add(this,"Closing batch prepared stmnt");
-              }
-            }
-          } catch(Exception pse) {
-            String err = "Error closing batch prepared stmnt - "+pse.toString();
-            if(ErrorLog.enabled) {
-              ErrorLog.add(this, err, false);          
-            }
-            resultsList.add(Util.getError(err));
-          }
-        }
-      }        
         
       if(DebugLog.enabled) {
         DebugLog.add(this,"Closing connection");
       }
         
-      //Cleanup DB connection (Always applicable)
-      this.conn.close();
+      //Return the DB connection to the pool (Unless a GroupCommitter lent it)
+      if(!this.inGroup) {
+        this.close();
+      }
     }        
     
     if(DebugLog.enabled)  {
       DebugLog.add(this,"End execute");
     }
     
-    //UPDATE => [{message:"",status:"success"}]
-    if(update && resultsList.size() <= 0) {
+    //Remember if anything failed so callers can decide whether or not
+    //the results are worth caching
+    for(HashMap r : resultsList) {
+      if("error".equals(r.get("status"))) {
+        this.errors = true;
+      }
+    }
+    
+    //UPDATE => [{message:"",status:"success",counts:[1,1,-1]}] after the 
+    //results of any queries in the set. counts holds the update count of
+    //each statement, -1 for queries. The rows hold the keys generated for
+    //statements sent with returnKeys, led by the statement's index
+    if(committed) {
       
       HashMap pObj = new HashMap();  
       pObj.put("message", "");
       pObj.put("status",  "success");
-      pObj.put("rows",    new ArrayList());
-      pObj.put("types",   new ArrayList());
-      pObj.put("cols",    new ArrayList());
+      pObj.put("rows",    planner.getKeys());
+      pObj.put("types",   planner.getKeyTypes());
+      pObj.put("cols",    planner.getKeyCols());
+      pObj.put("counts",  planner.getCounts());
+      
+      //Statements skipped with onError=skip => failed:[{statement:2,
+      //message:"..."}]
+      if(!planner.getFailures().isEmpty()) {
+        final JSONArray failed = new JSONArray();
+        for(Map.Entry<Integer, String> f : planner.getFailures().entrySet()) {
+          final JSONObject fObj = new JSONObject();
+          fObj.put("statement", f.getKey().intValue());
+          fObj.put("message",   f.getValue());
+          failed.put(fObj);
+        }
+        pObj.put("failed", failed);
+      }
       resultsList.add(pObj);
       
     }
@@ -321,109 +413,368 @@ public class QueryExecutor {
     return serializeToJson(resultsList);
   }  
  
-  /** Add all the values in the String[] to the pstmt PreparedStatment
-    * Use some regex action to figure out what data type each value is
-    * before setting it
-    */
-  private void setPreparedStatementValues(PreparedStatement pstmt, 
-                                         String[] values) throws Exception {
-    final int vLen = values.length;
-    for(int v=0; v < vLen; v++) {
-      final String  val           = values[v];
-      final int     idx           = v+1;
-      final Matcher intMatcher    = intPattern.matcher(val);        
-      final Matcher doubleMatcher = doublePattern.matcher(val);
+  /** Does the query set <b>reqStr</b> contain anything other than reads? 
+   *  Used to route sets sent without an explicit update flag&#46;
+   */
+  public static boolean containsUpdates(String reqStr) throws JSONException {
+    final JSONArray reqs = new JSONArray(reqStr);
+    for(int r=0; r < reqs.length(); r++) {
+      final String query = MacroCache.resolve(reqs.getJSONObject(r)
+                                                  .optString("query"));
+      if(query != null && !query.equals("") && !SqlUtil.isRead(query)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /** Only read from cluster members that have caught up with the write 
+   *  that produced <b>token</b> (see JDBCClusteredConnectionPool) */
+  public void setConsistencyToken(long token) {
+    this.consistencyToken = token;
+  }
+  
+  /** Let <b>committer</b> run small update sets as part of a group 
+   *  commit (see GroupCommitter) */
+  public void setGroupCommitter(GroupCommitter committer) {
+    this.groupCommitter = committer;
+  }
+  
+  /** Run the update set <b>reqStr</b> on <b>conn</b> inside the caller's
+   *  transaction&#46; A failure only rolls back to a savepoint taken at the
+   *  start of the set; committing is up to the caller&#46;
+   */
+  String executeInGroup(Connection conn, String reqStr) throws Exception {
+    this.conn    = conn;
+    this.inGroup = true;
+    try {
+      return execute(reqStr, true);
+    } finally {
+      this.inGroup        = false;
+      this.groupSavepoint = null;
+      this.conn           = null;
+    }
+  }
+  
+  /** The group commit this set was part of failed */
+  void groupFailed() {
+    this.errors = true;
+  }
+  
+  /** Batch the updates of update sets according to <b>options</b> */
+  public void setBatchOptions(BatchOptions options) {
+    this.batchOptions = options;
+  }
+  
+  /** Run the statements of read query sets concurrently on up to 
+   *  <b>parallel</b> pool connections&#46; 0 or 1 runs them one after 
+   *  another on a single connection&#46;
+   */
+  public void setParallel(int parallel) {
+    this.parallel = parallel;
+  }
+  
+  /** Run each read in <b>reqs</b> on its own connection, at most 
+   *  <i>parallel</i> at a time, and return the results in the original 
+   *  order&#46; The calling thread runs one of the lanes itself&#46;
+   */
+  private String executeParallel(final JSONArray reqs) throws Exception {
+    final int            rLen    = reqs.length();
+    final int            lanes   = Math.min(this.parallel, rLen);
+    final JSONObject[]   results = new JSONObject[rLen];
+    final boolean[]      failed  = new boolean[rLen];
+    final AtomicInteger  next    = new AtomicInteger();
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Running " + rLen + " queries on " + lanes + 
+                         " connections");
+    }
+    
+    final ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for(int l=0; l < lanes; l++) {
+      final QueryExecutor lane = new QueryExecutor(this.pool);
+      lane.consistencyToken = this.consistencyToken;
       
-      if(intMatcher.find()) {
-        pstmt.setInt(idx, Integer.parseInt(val));  
-      } else if(doubleMatcher.find()) {
-        pstmt.setDouble(idx, Double.parseDouble(val));  
-      } else {
-        pstmt.setString(idx, val);
+      tasks.add(new Callable<Object>() {
+        public Object call() throws Exception {
+          for(int r = next.getAndIncrement(); r < rLen && !cancelled; 
+              r = next.getAndIncrement()) {
+            final String one = "[" + reqs.getJSONObject(r) + "]";
+            results[r] = new JSONArray(lane.execute(one, false))
+                           .getJSONObject(0);
+            failed[r]  = lane.hasErrors();
+          }
+          return null;
+        }
+      });
+    }
+    
+    runLanes(tasks);
+    
+    this.errors = false;
+    final JSONArray resArray = new JSONArray();
+    for(int r=0; r < rLen; r++) {
+      resArray.put(results[r]);
+      this.errors = this.errors || failed[r];
+    }
+    return resArray.toString();
+  }
+  
+  /** Commit update sets every <b>statements</b> statements instead of 
+   *  once at the end&#46; If the set fails the error reports how many 
+   *  statements were <i>committed</i> before the failure&#46; 0 commits
+   *  once&#46;
+   */
+  public void setCommitEvery(int statements) {
+    this.commitEvery = statements;
+  }
+  
+  /** Roll back only the statements of an update set that fail, each 
+   *  behind its own savepoint, and commit the rest&#46; The summary lists 
+   *  the <i>failed</i> statements by index&#46;
+   */
+  public void setSkipErrors(boolean skipErrors) {
+    this.skipErrors = skipErrors;
+  }
+  
+  /** Run update sets as chunks of <i>batchSize</i> statements, each 
+   *  committed on its own, on up to <b>lanes</b> pool connections at a 
+   *  time&#46; 0 runs update sets as a single transaction&#46;
+   */
+  public void setBulk(int lanes) {
+    this.bulk = lanes;
+  }
+  
+  /** Split the updates in <b>reqs</b> in chunks and run them concurrently,
+   *  each chunk in its own transaction&#46; A failed chunk is rolled back 
+   *  without affecting the others&#46; The result holds the summary (or 
+   *  error) of every chunk in order, with the index of its first statement
+   *  as <i>offset</i>&#46;
+   */
+  private String executeBulk(final JSONArray reqs) throws Exception {
+    final int            rLen    = reqs.length();
+    final int            size    = this.batchOptions.getBatchSize();
+    final int            chunks  = (rLen + size - 1) / size;
+    final int            lanes   = Math.min(this.bulk, chunks);
+    final JSONObject[]   results = new JSONObject[chunks];
+    final boolean[]      failed  = new boolean[chunks];
+    final AtomicInteger  next    = new AtomicInteger();
+    
+    //Reads would have nothing consistent to read from
+    for(int r=0; r < rLen; r++) {
+      final String query = MacroCache.resolve(reqs.getJSONObject(r)
+                                                  .optString("query"));
+      if(query != null && SqlUtil.isRead(query)) {
+        throw new QueryExecutorException("Statement " + r + " is a query. " +
+                                         "Bulk update sets can only contain "+
+                                         "updates");
       }
     }
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Running " + rLen + " updates as " + chunks + 
+                         " chunks on " + lanes + " connections");
+    }
+    
+    final ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for(int l=0; l < lanes; l++) {
+      final QueryExecutor lane = new QueryExecutor(this.pool);
+      lane.batchOptions = this.batchOptions;
+      lane.commitEvery  = this.commitEvery;
+      lane.skipErrors   = this.skipErrors;
+      
+      tasks.add(new Callable<Object>() {
+        public Object call() throws Exception {
+          for(int c = next.getAndIncrement(); c < chunks && !cancelled; 
+              c = next.getAndIncrement()) {
+            final JSONArray chunk = new JSONArray();
+            for(int r = c * size; r < Math.min(rLen, (c + 1) * size); r++) {
+              chunk.put(reqs.get(r));
+            }
+            
+            final JSONArray res = new JSONArray(lane.execute(chunk.toString(),
+                                                             true));
+            results[c] = res.getJSONObject(res.length() - 1);
+            results[c].put("offset", c * size);
+            failed[c]  = lane.hasErrors();
+          }
+          return null;
+        }
+      });
+    }
+    
+    runLanes(tasks);
+    
+    this.errors = false;
+    final JSONArray resArray = new JSONArray();
+    for(int c=0; c < chunks; c++) {
+      resArray.put(results[c]);
+      this.errors = this.errors || failed[c];
+    }
+    return resArray.toString();
   }
-
-  /** Add a batch update to either a single statement, the correct
-    * passed prepared statement.
-    */
-  private void addBatchUpdate(Connection conn, boolean prepared, String query, 
-                              String[] values, Statement bstmt, 
-                              LinkedHashMap<String, PreparedStatement> bpstmts) 
-                              throws Exception {
   
-    //If this is NOT a prepared statement then add the query to a raw SQL batch
-    if(!prepared) {
-      if(DebugLog.enabled) {
-        DebugLog.add(this,"Adding update '"+query+"' to statement batch");
+  //Run every task, the first one on the calling thread
+  private void runLanes(ArrayList<Callable<Object>> tasks) throws Exception {
+    final ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+    for(int l=1; l < tasks.size(); l++) {
+      futures.add(WorkerPool.submit(tasks.get(l)));
+    }
+    
+    try {
+      tasks.get(0).call();
+      for(Future<Object> f : futures) {
+        f.get();
       }
-      bstmt.addBatch(query);            
-    } else {
-      //If this IS a prepared statement then check for its existence
-      //in the pstmts hash. If it doesn't exist then create a new
-      //pstmt for the query and add it to the hash.
-      PreparedStatement pstmt = null;
-      if(bpstmts.containsKey(query)) {
+    } catch(ExecutionException ee) {
+      throw ee.getCause() instanceof Exception ? 
+            (Exception)ee.getCause() : ee;
+    }
+    
+    if(this.cancelled) {
+      throw new QueryExecutorException("Cancelled");
+    }
+  }
+  
+  /** Cancel the query set currently being executed&#46; The running 
+   *  statement is cancelled and no further statements are started&#46;
+   */
+  public void cancel() {
+    this.cancelled = true;
+    final Statement stmt = this.running;
+    if(stmt != null) {
+      try {
+        stmt.cancel();
+      } catch(SQLException se) {
         if(DebugLog.enabled) {
-          DebugLog.add(this,"Retrieving pstmt batch for query '"+query+"'");
+          DebugLog.add(this, "Statement could not be cancelled - " + se);
         }
-        pstmt = bpstmts.get(query);
+      }
+    }
+  }
+  
+  /** Run a read query set on one cluster member and, if it hasn't answered
+   *  within the cluster's hedge delay, on a second member as well&#46; The 
+   *  first successful result wins and the other is cancelled&#46;
+   */
+  private String executeHedged(String reqStr) throws Exception {
+    final JDBCClusteredConnectionPool cluster = 
+      (JDBCClusteredConnectionPool)this.pool;
+    
+    //Check out the first member up front so we know how long to give it
+    this.open(false);
+    final ClusterMember first = cluster.getMember(this.conn);
+    final QueryExecutor exA   = new QueryExecutor(cluster);
+    exA.conn  = this.conn;
+    this.conn = null;
+    
+    final CompletionService<String> done = 
+      new ExecutorCompletionService<String>(WorkerPool.getExecutor());
+    final Future<String> fA = done.submit(exA.task(reqStr));
+    QueryExecutor        exB = null;
+    
+    Future<String> f = done.poll(cluster.getHedgeDelay(first), 
+                                 TimeUnit.MILLISECONDS);
+    if(f == null) {
+      final Connection hedgeConn = cluster.checkOutExcluding(first);
+      if(hedgeConn == null) {
+        f = fA;
       } else {
         if(DebugLog.enabled) {
-          DebugLog.add(this,"Starting pstmt batch for query '"+query+"'");
+          DebugLog.add(this, "Hedging read against cluster '" + 
+                             cluster.getAlias() + "'");
         }
         
-        pstmt = conn.prepareStatement(query);
-      }
-      
-      if(DebugLog.enabled) {
-        DebugLog.add(this,"Setting vals on pstmt batch for query '"+query+"'");
+        exB      = new QueryExecutor(cluster);
+        exB.conn = hedgeConn;
+        done.submit(exB.task(reqStr));
+        
+        //Give the other member a chance if the first one back failed
+        f = done.take();
+        if((f == fA ? exA : exB).hasErrors()) {
+          f = done.take();
+        } else {
+          (f == fA ? exB : exA).cancel();
+        }
       }
-      
-      setPreparedStatementValues(pstmt, values);
-      
-      //Add THIS set of values to the batch for this specific 
-      //prepared statement. Later on all prepared statment batches
-      //will be executed sequentially
-      if(DebugLog.enabled) {
-        DebugLog.add(this,"Adding to pstmt batch for query '"+query+"'");
+    }
+    
+    try {
+      final String results = f.get();
+      this.errors = (f == fA ? exA : exB).hasErrors();
+      return results;
+    } catch(ExecutionException ee) {
+      throw ee.getCause() instanceof Exception ? 
+            (Exception)ee.getCause() : ee;
+    }
+  }
+  
+  //Wrap a read of reqStr so it can run on a worker thread
+  private Callable<String> task(final String reqStr) {
+    return new Callable<String>() {
+      public String call() throws Exception {
+        return execute(reqStr, false);
       }
-      pstmt.addBatch();
-      bpstmts.put(query, pstmt);          
-    }  
+    };
+  }
+  
+  /** Did the last call to execute() return any errors? */
+  public boolean hasErrors() {
+    return this.errors;
+  }
+ 
+  /** Add all the values in the String[] to the pstmt PreparedStatment
+    * Use some regex action to figure out what data type each value is
+    * before setting it
+    */
+  static void setPreparedStatementValues(PreparedStatement pstmt, 
+                                         String[] values) throws Exception {
+    setPreparedStatementValues(pstmt, values, 0);
   }
   
-  /** Execute a single update. This handles both a raw query and
-    * a prepared statement.
+  /** Same as above but start at the parameter after <b>offset</b>, for 
+    * statements binding several rows of values
     */
-  private void executeUpdate(Connection conn, boolean prepared, String query, 
-                             String[] values) throws Exception {
-    PreparedStatement pstmt = null;
-    Statement         stmt  = null;
-    
-    try {
-      if(!prepared) {
-        if(DebugLog.enabled) 
-          DebugLog.add(this,"This is a single statement update"); 
-        stmt = conn.createStatement();
-        stmt.executeUpdate(query);
+  static void setPreparedStatementValues(PreparedStatement pstmt, 
+                                         String[] values, 
+                                         int offset) throws Exception {
+    final int vLen = values.length;
+    for(int v=0; v < vLen; v++) {
+      final String  val           = values[v];
+      final int     idx           = offset+v+1;
+      final Matcher intMatcher    = intPattern.matcher(val);        
+      final Matcher doubleMatcher = doublePattern.matcher(val);
+      
+      //A double starts with an int so it has to be checked first
+      if(doubleMatcher.find()) {
+        pstmt.setDouble(idx, Double.parseDouble(val));  
+      } else if(intMatcher.find()) {
+        setInteger(pstmt, idx, val);
       } else {
-        if(DebugLog.enabled) 
-          DebugLog.add(this,"This is a single prepared statement update");
-        pstmt = conn.prepareStatement(query); 
-        setPreparedStatementValues(pstmt, values);
-        pstmt.executeUpdate();
-      }
-    } finally {
-      if(stmt != null) {
-        stmt.close();
-      }    
-      if(pstmt != null) {
-        pstmt.close();
+        pstmt.setString(idx, val);
       }
     }
   }
-  
+
+  //Bind a whole number with the smallest type it fits in. Totals such as
+  //coalesced counters can outgrow an int
+  private static void setInteger(PreparedStatement pstmt, int idx, 
+                                 String val) throws Exception {
+    long number;
+    try {
+      number = Long.parseLong(val);
+    } catch(NumberFormatException nfe) {
+      pstmt.setBigDecimal(idx, new BigDecimal(val));
+      return;
+    }
+    
+    if(number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE) {
+      pstmt.setInt(idx, (int)number);
+    } else {
+      pstmt.setLong(idx, number);
+    }
+  }
+
   /** Execute a query i.e. NOT AN UPDATE. This method handles both
     * raw SQL and prepared statements.
     */
@@ -443,6 +794,7 @@ public class QueryExecutor {
     try {   
       if(prepared) {
         pstmt = conn.prepareStatement(query);
+        this.running = pstmt;
         setPreparedStatementValues(pstmt,values);
         rset  = pstmt.executeQuery();
         if(DebugLog.enabled) {
@@ -450,6 +802,7 @@ public class QueryExecutor {
         }
       } else {
         stmt = conn.createStatement();      
+        this.running = stmt;
         rset = stmt.executeQuery(query);
         if(DebugLog.enabled) {
           DebugLog.add(this,"Statement has been executed");
@@ -491,6 +844,7 @@ public class QueryExecutor {
       
       return Util.getError(err);
     } finally {
+      this.running = null;
       //Cleanup up JDBC stuff
  	  if(rset != null) {
  	    rset.close();
@@ -555,6 +909,23 @@ public class QueryExecutor {
                  new JSONArray(((ArrayList)tHashMap.get("cols")).toArray()));
       }      
       
+      if(tHashMap.containsKey("counts")) {
+        final int[] counts = (int[])tHashMap.get("counts");
+        JSONArray   tCounts = new JSONArray();
+        for(int c=0; c < counts.length; c++) {
+          tCounts.put(counts[c]);
+        }
+        jObj.put("counts", tCounts);
+      }
+      
+      if(tHashMap.containsKey("failed")) {
+        jObj.put("failed", (JSONArray)tHashMap.get("failed"));
+      }
+      
+      if(tHashMap.containsKey("committed")) {
+        jObj.put("committed", ((Integer)tHashMap.get("committed")).intValue());
+      }
+      
       if(tHashMap.containsKey("rows")) {
         
         JSONArray       tJarr = new JSONArray();
@@ -0,0 +1,186 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.Properties;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/** Cache of fully encoded HTTP responses&#46; Each entry holds the final
+ *  (possibly gzipped) response body plus the headers sent with it so a
+ *  cache hit can be written straight to the socket without any JSON or
+ *  compression work&#46; Entries are keyed by the canonicalized request,
+ *  see getKey()&#46; <br><br>
+ *  The entries themselves are serialized into a CacheStore which either
+ *  keeps them on the heap or in off heap slabs&#46;
+ */
+public class ResponseCache {
+
+  /** A single cached response&#46; The body may be a view of the store's 
+   *  memory, release() the entry once it has been sent */
+  public static class Entry {
+    public final ByteBuffer       body;
+    public final Properties       header;
+    public final long             expires;
+    private final CacheStore.Lease lease;
+
+    public Entry(ByteBuffer body, Properties header, long expires,
+                 CacheStore.Lease lease) {
+      this.body    = body;
+      this.header  = header;
+      this.expires = expires;
+      this.lease   = lease;
+    }
+    
+    public void release() {
+      this.lease.release();
+    }
+  }
+
+  private CacheStore store;
+
+  /** Create a new cache backed by <b>store</b> */
+  public ResponseCache(CacheStore store) {
+    this.store = store;
+  }
+
+  /** Build the cache key for a request&#46; The json is parsed and
+   *  re-serialized so that insignificant whitespace and quoting differences
+   *  map to the same entry&#46; The <b>gzip</b> flag is the negotiated
+   *  content encoding, not the raw Accept-Encoding header&#46;
+   */
+  public static String getKey(String alias, String json, boolean update,
+                              boolean gzip) throws JSONException {
+    return alias + "\u0000" + (update ? "Y" : "N") + "\u0000" +
+           (gzip ? "gzip" : "identity") + "\u0000" + 
+           new JSONArray(json).toString();
+  }
+
+  /** Return the cached response for <b>key</b> or null if it is missing
+   *  or has expired&#46;
+   */
+  public Entry get(String key) {
+    final CacheStore.Lease lease = this.store.lease(key);
+    if(lease == null) {
+      return null;
+    }
+    
+    try {
+      return decode(lease);
+    } catch(IOException ioe) {
+      lease.release();
+      this.store.remove(key);
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this, "Corrupt response cache entry - " + ioe, false);
+      }
+      return null;
+    }
+  }
+
+  /** Cache the encoded <b>body</b> and <b>header</b> for <b>ttl</b> 
+   *  seconds&#46;
+   */
+  public void put(String key, byte[] body, Properties header, int ttl) {
+    if(ttl <= 0) {
+      return;
+    }
+
+    try {
+      final long expires = System.currentTimeMillis() + (ttl * 1000L);
+      if(this.store.put(key, encode(body, header), expires) && 
+         DebugLog.enabled) {
+        DebugLog.add(this, "Response cached for " + ttl + " seconds");
+      }
+    } catch(IOException ioe) {
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this, "Response could not be cached - " + ioe, false);
+      }
+    }
+  }
+  
+  //[header count][name][value]...[body length][body]
+  private static byte[] encode(byte[] body, Properties header) 
+                               throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream(body.length + 128);
+    DataOutputStream      dout = new DataOutputStream(bout);
+    
+    dout.writeShort(header.size());
+    Enumeration<?> names = header.propertyNames();
+    while(names.hasMoreElements()) {
+      final String name = (String)names.nextElement();
+      dout.writeUTF(name);
+      dout.writeUTF(header.getProperty(name));
+    }
+    dout.writeInt(body.length);
+    dout.write(body);
+    dout.close();
+    
+    return bout.toByteArray();
+  }
+  
+  //The body is returned as a view of the stored bytes, not a copy, so it 
+  //stays off heap if the store is
+  private static Entry decode(CacheStore.Lease lease) throws IOException {
+    final ByteBuffer value = lease.getValue();
+    
+    DataInputStream din    = new DataInputStream(new InputStream() {
+      public int read() {
+        return value.hasRemaining() ? value.get() & 0xff : -1;
+      }
+    });
+    Properties      header = new Properties();
+    
+    final int headerCount = din.readShort();
+    for(int h=0; h < headerCount; h++) {
+      header.put(din.readUTF(), din.readUTF());
+    }
+    
+    final int length = din.readInt();
+    if(length < 0 || length > value.remaining()) {
+      throw new IOException("Body length " + length + " is out of range");
+    }
+    
+    final ByteBuffer body = value.slice();
+    body.limit(length);
+    return new Entry(body, header, lease.getExpires(), lease);
+  }
+
+  /** The CacheStore backing this cache */
+  public CacheStore getStore() {
+    return this.store;
+  }
+
+  /** Remove every cached response */
+  public void clear() {
+    this.store.clear();
+  }
+
+  /** Number of responses currently cached */
+  public int size() {
+    return this.store.size();
+  }
+}
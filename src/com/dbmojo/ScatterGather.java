@@ -0,0 +1,501 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/** 
+ *  Runs read query sets against every member of a sharded alias in 
+ *  parallel and merges the rows as they arrive&#46; <br><br>
+ *  Each statement may carry a <b>merge</b> object:<br><br>
+ *  <i>{query:"select region, count(*) as n from orders group by region",
+ *  <br>merge:{aggregate:{N:"count"}, orderBy:["N desc"], limit:10}}</i>
+ *  <br><br>
+ *  <ul>
+ *    <li><strong>orderBy</strong> - Columns every shard already sorts by. 
+ *    The shard results are k-way merged on them.</li>
+ *    <li><strong>aggregate</strong> - count, sum, min or max per column. 
+ *    Partial results are re-aggregated, grouped by the remaining 
+ *    columns.</li>
+ *    <li><strong>limit</strong> - Stop after this many rows. Without 
+ *    aggregation the shards stop fetching as soon as it is reached.</li>
+ *  </ul>
+ *  Without a merge object the shard results are concatenated in arrival 
+ *  order&#46; If any shard fails the statement returns an error&#46;
+ */
+public class ScatterGather {
+  
+  private final static int               queueSize = 256;
+  private final static ArrayList<String> end       = new ArrayList<String>();
+  
+  private ShardedConnectionPool pool;
+  private boolean               errors;
+  
+  public ScatterGather(ShardedConnectionPool pool) {
+    this.pool = pool;
+  }
+  
+  /** Execute the read query set <b>reqStr</b> on every shard */
+  public String execute(String reqStr) throws Exception {
+    final JSONArray reqs    = new JSONArray(reqStr);
+    final JSONArray results = new JSONArray();
+    
+    this.errors = false;
+    
+    if(reqs.length() <= 0) {
+      throw new QueryExecutorException("No queries specified");
+    }
+    
+    for(int r=0; r < reqs.length(); r++) {
+      try {
+        results.put(gather(reqs.getJSONObject(r)));
+      } catch(Exception e) {
+        final String err = "Couldn't Execute Query: " + e.toString();
+        if(DebugLog.enabled) {
+          DebugLog.add(this, err);
+        }
+        
+        this.errors = true;
+        results.put(Util.getErrorJson(err).getJSONObject(0));
+      }
+    }
+    
+    return results.toString();
+  }
+  
+  /** Did the last call to execute() return any errors? */
+  public boolean hasErrors() {
+    return this.errors;
+  }
+  
+  private JSONObject gather(JSONObject reqObj) throws Exception {
+    final JSONArray  tValues = reqObj.optJSONArray("values");
+    final JSONObject merge   = reqObj.optJSONObject("merge");
+    String[]         values  = null;
+    String           query   = reqObj.getString("query");
+    
+    if(tValues != null) {
+      values = new String[tValues.length()];
+      for(int v=0; v < values.length; v++) {
+        values[v] = tValues.getString(v);
+      }
+    }
+    
+    final String resolved = MacroCache.resolve(query);
+    if(resolved == null) {
+      throw new QueryExecutorException("Macro '"+query+"' is missing");
+    }
+    query = resolved;
+    
+    final JSONArray  orderBy   = merge != null ? 
+                                 merge.optJSONArray("orderBy") : null;
+    final JSONObject aggregate = merge != null ? 
+                                 merge.optJSONObject("aggregate") : null;
+    final int        limit     = merge != null ? 
+                                 merge.optInt("limit", -1) : -1;
+    
+    //Ordered merges need to see the head of every shard, everything else
+    //can take rows from whichever shard has one ready
+    final ConnectionPool[] pools  = this.pool.getShards();
+    final Shard[]          shards = new Shard[pools.length];
+    final BlockingQueue<ArrayList<String>> shared = 
+      new ArrayBlockingQueue<ArrayList<String>>(queueSize);
+    final boolean          kWay   = orderBy != null && aggregate == null;
+    
+    for(int s=0; s < shards.length; s++) {
+      shards[s] = new Shard(pools[s], query, values, kWay ? 
+                            new ArrayBlockingQueue<ArrayList<String>>(queueSize)
+                            : shared);
+      WorkerPool.getExecutor().execute(shards[s]);
+    }
+    
+    if(DebugLog.enabled) {
+      DebugLog.add(this, "Scattered query to " + shards.length + " shards");
+    }
+    
+    ArrayList<ArrayList<String>> rows = new ArrayList<ArrayList<String>>();
+    Shard                        head = null;
+    try {
+      for(Shard s : shards) {
+        s.opened.await();
+        s.check();
+      }
+      head = shards[0];
+      
+      final Comparator<ArrayList<String>> order = 
+        orderBy != null ? getComparator(orderBy, head) : null;
+      
+      if(aggregate != null) {
+        rows = aggregate(shared, shards, aggregate, head);
+        if(order != null) {
+          Collections.sort(rows, order);
+        }
+        if(limit >= 0 && rows.size() > limit) {
+          rows = new ArrayList<ArrayList<String>>(rows.subList(0, limit));
+        }
+      } else if(kWay) {
+        mergeOrdered(shards, order, limit, rows);
+      } else {
+        int done = 0;
+        while(done < shards.length && (limit < 0 || rows.size() < limit)) {
+          final ArrayList<String> row = shared.take();
+          if(row == end) {
+            done++;
+          } else {
+            rows.add(row);
+          }
+        }
+      }
+      
+      for(Shard s : shards) {
+        s.check();
+      }
+    } finally {
+      //Stop fetching from shards we no longer need rows from
+      for(Shard s : shards) {
+        s.cancel();
+      }
+    }
+    
+    final JSONObject qObj = new JSONObject();
+    qObj.put("types",   head.types);
+    qObj.put("cols",    head.cols);
+    qObj.put("rows",    new JSONArray(rows));
+    qObj.put("message", "");
+    qObj.put("status",  "success");
+    return qObj;
+  }
+  
+  //K-way merge of shard results that are each already sorted
+  private void mergeOrdered(final Shard[] shards, 
+                            final Comparator<ArrayList<String>> order,
+                            int limit, ArrayList<ArrayList<String>> rows) 
+                            throws Exception {
+    
+    final PriorityQueue<Integer> heads = new PriorityQueue<Integer>(
+      shards.length, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return order.compare(shards[a].head, shards[b].head);
+        }
+      });
+    
+    for(int s=0; s < shards.length; s++) {
+      if(shards[s].advance()) {
+        heads.add(s);
+      }
+    }
+    
+    while(!heads.isEmpty() && (limit < 0 || rows.size() < limit)) {
+      final int s = heads.poll();
+      rows.add(shards[s].head);
+      if(shards[s].advance()) {
+        heads.add(s);
+      }
+    }
+  }
+  
+  //Fold the partial aggregates of every shard into one row per group
+  private ArrayList<ArrayList<String>> aggregate(
+    BlockingQueue<ArrayList<String>> shared, Shard[] shards, 
+    JSONObject aggregate, Shard head) throws Exception {
+    
+    final int      numCols = head.cols.size();
+    final String[] funcs   = new String[numCols];
+    for(int c=0; c < numCols; c++) {
+      final String func = getOpt(aggregate, head.cols.get(c));
+      if(func != null && !func.equals("count") && !func.equals("sum") &&
+         !func.equals("min") && !func.equals("max")) {
+        throw new QueryExecutorException("Unknown aggregate '" + func + "'");
+      }
+      funcs[c] = func;
+    }
+    
+    final LinkedHashMap<ArrayList<String>, ArrayList<String>> groups = 
+      new LinkedHashMap<ArrayList<String>, ArrayList<String>>();
+    
+    int done = 0;
+    while(done < shards.length) {
+      final ArrayList<String> row = shared.take();
+      if(row == end) {
+        done++;
+        continue;
+      }
+      
+      final ArrayList<String> key = new ArrayList<String>();
+      for(int c=0; c < numCols; c++) {
+        if(funcs[c] == null) {
+          key.add(row.get(c));
+        }
+      }
+      
+      final ArrayList<String> acc = groups.get(key);
+      if(acc == null) {
+        groups.put(key, row);
+        continue;
+      }
+      
+      for(int c=0; c < numCols; c++) {
+        final String a = acc.get(c);
+        final String b = row.get(c);
+        if(funcs[c] == null || b == null) {
+          continue;
+        } else if(a == null) {
+          acc.set(c, b);
+        } else if(funcs[c].equals("count") || funcs[c].equals("sum")) {
+          acc.set(c, new BigDecimal(a).add(new BigDecimal(b)).toPlainString());
+        } else {
+          final int cmp = compare(a, b, head.numeric[c]);
+          if(funcs[c].equals("min") ? cmp > 0 : cmp < 0) {
+            acc.set(c, b);
+          }
+        }
+      }
+    }
+    
+    return new ArrayList<ArrayList<String>>(groups.values());
+  }
+  
+  //Build a row comparator from ["COL", "COL2 desc", ...]
+  private Comparator<ArrayList<String>> getComparator(JSONArray orderBy, 
+                                                      Shard head) 
+                                                      throws Exception {
+    final int[]     idx  = new int[orderBy.length()];
+    final boolean[] desc = new boolean[orderBy.length()];
+    
+    for(int o=0; o < idx.length; o++) {
+      final String[] spec = orderBy.getString(o).trim().split("\\s+");
+      idx[o]  = indexOf(head.cols, spec[0]);
+      desc[o] = spec.length > 1 && spec[1].equalsIgnoreCase("desc");
+      
+      if(idx[o] < 0) {
+        throw new QueryExecutorException("orderBy column '" + spec[0] + 
+                                         "' is not in the results");
+      }
+    }
+    
+    final boolean[] numeric = head.numeric;
+    return new Comparator<ArrayList<String>>() {
+      public int compare(ArrayList<String> a, ArrayList<String> b) {
+        for(int o=0; o < idx.length; o++) {
+          final int cmp = ScatterGather.compare(a.get(idx[o]), b.get(idx[o]),
+                                                numeric[idx[o]]);
+          if(cmp != 0) {
+            return desc[o] ? -cmp : cmp;
+          }
+        }
+        return 0;
+      }
+    };
+  }
+  
+  //Nulls sort first
+  private static int compare(String a, String b, boolean numeric) {
+    if(a == null || b == null) {
+      return a == null ? (b == null ? 0 : -1) : 1;
+    }
+    return numeric ? new BigDecimal(a).compareTo(new BigDecimal(b)) : 
+                     a.compareTo(b);
+  }
+  
+  private static int indexOf(ArrayList<String> cols, String col) {
+    for(int c=0; c < cols.size(); c++) {
+      if(cols.get(c).equalsIgnoreCase(col)) {
+        return c;
+      }
+    }
+    return -1;
+  }
+  
+  //Look up a column name without regard to case
+  private static String getOpt(JSONObject obj, String col) {
+    final JSONArray names = obj.names();
+    for(int n=0; names != null && n < names.length(); n++) {
+      if(names.optString(n).equalsIgnoreCase(col)) {
+        return obj.optString(names.optString(n)).toLowerCase();
+      }
+    }
+    return null;
+  }
+  
+  private static boolean isNumeric(int type) {
+    switch(type) {
+      case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER:
+      case Types.BIGINT:  case Types.REAL:     case Types.FLOAT:
+      case Types.DOUBLE:  case Types.NUMERIC:  case Types.DECIMAL:
+        return true;
+      default:
+        return false;
+    }
+  }
+  
+  /** One shard's part of a scattered query. Rows are handed to the merge 
+   *  through a bounded queue so a slow merge holds back the fetching */
+  private static class Shard implements Runnable {
+    
+    final ConnectionPool                   pool;
+    final String                           query;
+    final String[]                         values;
+    final BlockingQueue<ArrayList<String>> rows;
+    final CountDownLatch                   opened = new CountDownLatch(1);
+    
+    ArrayList<String>   cols    = new ArrayList<String>();
+    ArrayList<String>   types   = new ArrayList<String>();
+    boolean[]           numeric = new boolean[0];
+    ArrayList<String>   head;
+    
+    volatile Exception  error;
+    volatile boolean    cancelled;
+    volatile Statement  stmt;
+    
+    Shard(ConnectionPool pool, String query, String[] values, 
+          BlockingQueue<ArrayList<String>> rows) {
+      this.pool   = pool;
+      this.query  = query;
+      this.values = values;
+      this.rows   = rows;
+    }
+    
+    public void run() {
+      Connection conn = null;
+      ResultSet  rset = null;
+      try {
+        conn = this.pool.checkOut(false);
+        while(conn == null && !this.cancelled) {
+          Thread.yield();
+          conn = this.pool.checkOut(false);
+        }
+        
+        if(conn == null) {
+          return;
+        }
+        
+        if(this.values != null) {
+          final PreparedStatement pstmt = conn.prepareStatement(this.query);
+          this.stmt = pstmt;
+          QueryExecutor.setPreparedStatementValues(pstmt, this.values);
+          rset = pstmt.executeQuery();
+        } else {
+          this.stmt = conn.createStatement();
+          rset = this.stmt.executeQuery(this.query);
+        }
+        
+        final ResultSetMetaData meta    = rset.getMetaData();
+        final int               numCols = meta.getColumnCount();
+        this.numeric = new boolean[numCols];
+        for(int i=1; i <= numCols; i++) {
+          this.cols.add(meta.getColumnName(i));
+          this.types.add(meta.getColumnTypeName(i));
+          this.numeric[i-1] = isNumeric(meta.getColumnType(i));
+        }
+        this.opened.countDown();
+        
+        while(!this.cancelled && rset.next()) {
+          final ArrayList<String> row = new ArrayList<String>(numCols);
+          for(int i=1; i <= numCols; i++) {
+            row.add(rset.getString(i));
+          }
+          put(row);
+        }
+      } catch(Exception e) {
+        if(!this.cancelled) {
+          this.error = e;
+        }
+      } finally {
+        this.opened.countDown();
+        try {
+          put(end);
+        } catch(InterruptedException ie) {
+          this.error = ie;
+        }
+        
+        try {
+          if(rset != null) {
+            rset.close();
+          }
+          if(this.stmt != null) {
+            this.stmt.close();
+          }
+        } catch(SQLException se) {
+          if(ErrorLog.enabled) {
+            ErrorLog.add(this, "Error closing shard statement - " + se, false);
+          }
+        }
+        
+        if(conn != null) {
+          this.pool.checkIn(conn);
+        }
+      }
+    }
+    
+    //Blocks while the queue is full, unless the merge no longer wants rows
+    private void put(ArrayList<String> row) throws InterruptedException {
+      while(!this.cancelled && 
+            !this.rows.offer(row, 100, TimeUnit.MILLISECONDS)) {
+      }
+    }
+    
+    //Move to the next row of this shard. False once it is exhausted
+    boolean advance() throws Exception {
+      this.head = this.rows.take();
+      check();
+      return this.head != end;
+    }
+    
+    //Fail the whole statement if this shard failed
+    void check() throws Exception {
+      if(this.error != null) {
+        throw new QueryExecutorException("Shard '" + this.pool.getAlias() + 
+                                         "' failed: " + this.error);
+      }
+    }
+    
+    void cancel() {
+      this.cancelled = true;
+      final Statement tStmt = this.stmt;
+      if(tStmt != null) {
+        try {
+          tStmt.cancel();
+        } catch(SQLException se) {
+          if(DebugLog.enabled) {
+            DebugLog.add(this, "Shard statement could not be cancelled - " +se);
+          }
+        }
+      }
+    }
+  }
+}
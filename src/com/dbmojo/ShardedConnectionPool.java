@@ -0,0 +1,158 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/** A sharded alias groups several identical databases (existing dbAliases
+ *  or clusters) and routes each request to one of them by a shard key&#46;
+ *  <br><br>Keys are either consistently hashed onto a ring of virtual nodes
+ *  (<i>strategy: "hash"</i>) or matched against configured numeric ranges
+ *  (<i>strategy: "range"</i>), where <b>from</b> is inclusive and <b>to</b> 
+ *  exclusive&#46; <br><br>
+ *  A sharded alias never hands out connections itself, a member pool has to
+ *  be picked with getShard() first&#46;
+ */
+public class ShardedConnectionPool implements ConnectionPool {
+  
+  private final static int virtualNodes = 160;
+  
+  private String                     alias;
+  private ConnectionPool[]           shards;
+  private TreeMap<Long, Integer>     ring;
+  private long[]                     rangeFrom, rangeTo;
+  
+  /** Consistently hash keys across <b>shards</b> */
+  public ShardedConnectionPool(String alias, 
+                               ArrayList<ConnectionPool> shards) throws Exception {
+    this.alias  = alias;
+    this.shards = shards.toArray(new ConnectionPool[shards.size()]);
+    this.ring   = new TreeMap<Long, Integer>();
+    
+    for(int s=0; s < this.shards.length; s++) {
+      for(int v=0; v < virtualNodes; v++) {
+        this.ring.put(hash(this.shards[s].getAlias() + "#" + v), s);
+      }
+    }
+  }
+  
+  /** Route keys to <b>shards</b> by range. Shard <i>i</i> holds the keys 
+   *  from <b>rangeFrom[i]</b> (inclusive) to <b>rangeTo[i]</b> (exclusive) */
+  public ShardedConnectionPool(String alias, ArrayList<ConnectionPool> shards,
+                               long[] rangeFrom, long[] rangeTo) {
+    this.alias     = alias;
+    this.shards    = shards.toArray(new ConnectionPool[shards.size()]);
+    this.rangeFrom = rangeFrom;
+    this.rangeTo   = rangeTo;
+  }
+  
+  /** Return the member pool holding <b>key</b> */
+  public ConnectionPool getShard(String key) throws Exception {
+    if(this.ring != null) {
+      final SortedMap<Long, Integer> tail = this.ring.tailMap(hash(key));
+      return this.shards[tail.isEmpty() ? 
+                         this.ring.get(this.ring.firstKey()) :
+                         tail.get(tail.firstKey())];
+    }
+    
+    long numericKey;
+    try {
+      numericKey = Long.parseLong(key.trim());
+    } catch(NumberFormatException nfe) {
+      throw new QueryExecutorException("Shard key '" + key + 
+                                       "' is not numeric");
+    }
+    
+    for(int s=0; s < this.shards.length; s++) {
+      if(numericKey >= this.rangeFrom[s] && numericKey < this.rangeTo[s]) {
+        return this.shards[s];
+      }
+    }
+    
+    throw new QueryExecutorException("No shard of '" + this.alias + 
+                                     "' holds the key '" + key + "'");
+  }
+  
+  /** Return the member pool a query/update set should run against. The 
+   *  shard key comes from the request (<b>shardKey</b>) or from the 
+   *  <i>shardKey</i> of each statement, and every statement has to land on
+   *  the same shard&#46; */
+  public ConnectionPool getShard(JSONArray reqs, 
+                                 String shardKey) throws Exception {
+    ConnectionPool shard = shardKey != null ? getShard(shardKey) : null;
+    
+    for(int r=0; r < reqs.length(); r++) {
+      final JSONObject reqObj = reqs.getJSONObject(r);
+      if(!reqObj.has("shardKey")) {
+        continue;
+      }
+      
+      final ConnectionPool tShard = getShard(reqObj.getString("shardKey"));
+      if(shard != null && shard != tShard) {
+        throw new QueryExecutorException("Statements for '" + this.alias + 
+                                         "' span more than one shard");
+      }
+      shard = tShard;
+    }
+    
+    if(shard == null) {
+      throw new QueryExecutorException("A shard key is required for '" + 
+                                       this.alias + "'");
+    }
+    
+    return shard;
+  }
+  
+  /** Return every member pool */
+  public ConnectionPool[] getShards() {
+    return this.shards;
+  }
+  
+  //First 8 bytes of the MD5 of the key
+  private static long hash(String key) throws Exception {
+    final byte[] digest = MessageDigest.getInstance("MD5")
+                                       .digest(key.getBytes("UTF-8"));
+    long h = 0;
+    for(int i=0; i < 8; i++) {
+      h = (h << 8) | (digest[i] & 0xff);
+    }
+    return h;
+  }
+  
+  /** Sharded aliases need a shard key, see getShard() */
+  public Connection checkOut(boolean update) throws Exception {
+    throw new QueryExecutorException("A shard key is required for '" + 
+                                     this.alias + "'");
+  }
+  
+  /** Connections are always checked in to the member pool they came from */
+  public void checkIn(Connection t) {
+  }
+  
+  public String getAlias() {
+    return this.alias;
+  }
+}
@@ -0,0 +1,286 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *  Lightweight SQL inspection helpers&#46; These are not a SQL parser, they
+ *  only look at enough of a statement to route, batch and cache it&#46;
+ */
+public class SqlUtil {
+
+  private final static String  name = "([\\w$#\"`\\[\\]]+(?:\\.[\\w$#\"`\\[\\]]+)*)";
+  
+  private final static Pattern writeTablePattern = Pattern.compile(
+    "^\\s*(?:INSERT\\s+(?:INTO\\s+)?|UPDATE\\s+|DELETE\\s+(?:FROM\\s+)?|" +
+    "MERGE\\s+(?:INTO\\s+)?|REPLACE\\s+(?:INTO\\s+)?|" +
+    "TRUNCATE\\s+(?:TABLE\\s+)?|(?:ALTER|DROP)\\s+TABLE\\s+(?:IF\\s+EXISTS\\s+)?)" + 
+    name, Pattern.CASE_INSENSITIVE);
+  
+  private final static Pattern readPattern = Pattern.compile(
+    "^(?:\\s|\\(|--[^\\n]*\\n|/\\*.*?\\*/)*" +
+    "(?:SELECT|WITH|VALUES|SHOW|EXPLAIN|DESCRIBE|DESC)\\b", 
+    Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+  
+  private final static Pattern dmlPattern = Pattern.compile(
+    "INSERT|UPDATE|DELETE|MERGE", Pattern.CASE_INSENSITIVE);
+  
+  private final static Pattern insertValuesPattern = Pattern.compile(
+    "^\\s*(INSERT\\s+INTO\\s+" + name + "\\s*(?:\\([^()]*\\))?)\\s*" +
+    "VALUES\\s*(\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))\\s*;?\\s*$",
+    Pattern.CASE_INSENSITIVE);
+  
+  private final static Pattern queryStartPattern = Pattern.compile(
+    "SELECT|WITH|VALUES", Pattern.CASE_INSENSITIVE);
+  
+  private final static Pattern fromEndPattern = Pattern.compile(
+    "WHERE|GROUP|HAVING|ORDER|LIMIT|OFFSET|FETCH|UNION|INTERSECT|EXCEPT|" +
+    "MINUS|WINDOW|FOR|RETURNING|SET|VALUES|SELECT", Pattern.CASE_INSENSITIVE);
+
+  /** Return the table written to by a DML/DDL statement or null if it 
+   *  can't be determined&#46; Table names are lower cased, unquoted and 
+   *  stripped of their schema so they match {@link #getReadTables}&#46;
+   */
+  public static String getWriteTable(String sql) {
+    final Matcher m = writeTablePattern.matcher(sql);
+    return m.find() ? normalize(m.group(1)) : null;
+  }
+  
+  /** Is <b>sql</b> a read (SELECT, WITH, VALUES, SHOW, EXPLAIN or 
+   *  DESCRIBE) rather than DML/DDL? A WITH statement that contains INSERT,
+   *  UPDATE, DELETE or MERGE is treated as a write, as is a SELECT that 
+   *  takes row locks (FOR UPDATE, FOR SHARE, LOCK IN SHARE MODE) or 
+   *  creates a table or sets variables with INTO&#46; Keywords inside string
+   *  literals and comments are ignored&#46;
+   */
+  public static boolean isRead(String sql) {
+    final Matcher m = readPattern.matcher(sql);
+    if(!m.find()) {
+      return false;
+    }
+    
+    //Only look at words outside string literals and comments
+    final boolean with   = m.group().trim().toUpperCase().endsWith("WITH");
+    final Scanner words  = new Scanner(sql);
+    String        prev   = "";
+    int           token;
+    while((token = words.next()) != Scanner.END) {
+      if(token != Scanner.WORD) {
+        prev = "";
+        continue;
+      }
+      
+      final String word = words.word;
+      if(word.equalsIgnoreCase("INTO") || 
+         (with && dmlPattern.matcher(word).matches()) ||
+         (prev.equalsIgnoreCase("FOR") && 
+          (word.equalsIgnoreCase("UPDATE") || word.equalsIgnoreCase("SHARE") ||
+           word.equalsIgnoreCase("NO")     || word.equalsIgnoreCase("KEY"))) ||
+         (prev.equalsIgnoreCase("LOCK") && word.equalsIgnoreCase("IN"))) {
+        return false;
+      }
+      prev = word;
+    }
+    return true;
+  }
+  
+  /** Split a single row <i>INSERT INTO t (a, b) VALUES (?, ?)</i> into
+   *  the part before VALUES and the row of placeholders, or return null if
+   *  <b>sql</b> is anything more complicated&#46; Only rows made up of 
+   *  nothing but placeholders are accepted&#46;
+   */
+  public static String[] splitInsert(String sql) {
+    final Matcher m = insertValuesPattern.matcher(sql);
+    return m.find() ? new String[] {m.group(1), m.group(3)} : null;
+  }
+  
+  /** Return every table referenced in a FROM or JOIN clause, including
+   *  comma separated FROM lists and subqueries&#46; A FROM inside a function 
+   *  call such as <i>EXTRACT(YEAR FROM col)</i> is ignored, as is anything
+   *  in a string literal or comment&#46; Table names are lower cased, 
+   *  unquoted and stripped of their schema&#46;
+   */
+  public static ArrayList<String> getReadTables(String sql) {
+    ArrayList<String> tables = new ArrayList<String>();
+    
+    //One entry per open parenthesis: is it a query, are we in its FROM 
+    //list and is the next word a table name
+    ArrayList<boolean[]> frames = new ArrayList<boolean[]>();
+    boolean[]            frame  = {true, false, false};
+    boolean              first  = false;
+    frames.add(frame);
+    
+    final Scanner words = new Scanner(sql);
+    int           token;
+    while((token = words.next()) != Scanner.END) {
+      if(token == Scanner.OPEN) {
+        frame[2] = false;
+        frame    = new boolean[] {false, false, false};
+        first    = true;
+        frames.add(frame);
+      } else if(token == Scanner.CLOSE) {
+        if(frames.size() > 1) {
+          frames.remove(frames.size() - 1);
+          frame = frames.get(frames.size() - 1);
+        }
+        first = false;
+      } else if(token == Scanner.COMMA) {
+        frame[2] = frame[0] && frame[1];
+        first    = false;
+      } else if(token == Scanner.WORD) {
+        final String word = words.word;
+        
+        if(first) {
+          frame[0] = queryStartPattern.matcher(word).matches();
+          first    = false;
+        }
+        
+        if(!frame[0]) {
+          continue;
+        } else if(frame[2]) {
+          if(!word.equalsIgnoreCase("LATERAL") && 
+             !word.equalsIgnoreCase("ONLY")) {
+            final String table = normalize(word);
+            if(!tables.contains(table)) {
+              tables.add(table);
+            }
+            frame[2] = false;
+          }
+        } else if(word.equalsIgnoreCase("FROM") || 
+                  word.equalsIgnoreCase("JOIN")) {
+          frame[1] = frame[2] = true;
+        } else if(fromEndPattern.matcher(word).matches()) {
+          frame[1] = false;
+        }
+      } else {
+        frame[2] = first = false;
+      }
+    }
+    
+    return tables;
+  }
+  
+  /** Splits SQL into words (possibly quoted and dotted names), 
+   *  parentheses, commas and other tokens&#46; String literals come back 
+   *  as OTHER and comments and whitespace are skipped, so keywords inside 
+   *  either are never seen&#46;
+   */
+  private static class Scanner {
+    
+    final static int END = 0, WORD = 1, OPEN = 2, CLOSE = 3, COMMA = 4, 
+                     OTHER = 5;
+    
+    private final String sql;
+    private final int    len;
+    private int          i;
+    String               word;
+    
+    Scanner(String sql) {
+      this.sql = sql;
+      this.len = sql.length();
+    }
+    
+    int next() {
+      while(this.i < this.len) {
+        final char c = this.sql.charAt(this.i);
+        
+        if(Character.isWhitespace(c)) {
+          this.i++;
+        } else if(c == '-' && this.i + 1 < this.len && 
+                  this.sql.charAt(this.i + 1) == '-') {
+          final int end = this.sql.indexOf('\n', this.i);
+          this.i = end < 0 ? this.len : end + 1;
+        } else if(c == '/' && this.i + 1 < this.len && 
+                  this.sql.charAt(this.i + 1) == '*') {
+          final int end = this.sql.indexOf("*/", this.i + 2);
+          this.i = end < 0 ? this.len : end + 2;
+        } else if(c == '\'') {
+          this.i = skipQuoted(this.i, '\'');
+          return OTHER;
+        } else if(c == '(') {
+          this.i++;
+          return OPEN;
+        } else if(c == ')') {
+          this.i++;
+          return CLOSE;
+        } else if(c == ',') {
+          this.i++;
+          return COMMA;
+        } else if(isNameChar(c)) {
+          final int start = this.i;
+          this.i    = skipName(this.i);
+          this.word = this.sql.substring(start, this.i);
+          return WORD;
+        } else {
+          this.i++;
+          return OTHER;
+        }
+      }
+      return END;
+    }
+    
+    private static boolean isNameChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '$' || 
+             c == '#' || c == '"' || c == '`' || c == '[';
+    }
+    
+    //Skip a possibly quoted and dotted name starting at i
+    private int skipName(int i) {
+      while(i < this.len) {
+        final char c = this.sql.charAt(i);
+        if(c == '"' || c == '`') {
+          i = skipQuoted(i, c);
+        } else if(c == '[') {
+          final int end = this.sql.indexOf(']', i);
+          i = end < 0 ? this.len : end + 1;
+        } else if(Character.isLetterOrDigit(c) || c == '_' || c == '$' || 
+                  c == '#' || c == '.') {
+          i++;
+        } else {
+          break;
+        }
+      }
+      return i;
+    }
+    
+    //Skip a literal opened by quote at i, doubled quotes included
+    private int skipQuoted(int i, char quote) {
+      i++;
+      while(i < this.len) {
+        if(this.sql.charAt(i++) == quote) {
+          if(i < this.len && this.sql.charAt(i) == quote) {
+            i++;
+          } else {
+            break;
+          }
+        }
+      }
+      return i;
+    }
+  }
+  
+  private static String normalize(String table) {
+    table = table.replaceAll("[\"`\\[\\]]", "").toLowerCase();
+    return table.substring(table.lastIndexOf('.') + 1);
+  }
+}
@@ -74,6 +74,19 @@ public class Util {
     return bout.toString();
   }
   
+  /** GZIP encode a byte array */
+  public static byte[] gzip(byte[] inBytes) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    GZIPOutputStream      gout = new GZIPOutputStream(bout);
+    
+    try {
+      gout.write(inBytes,0,inBytes.length);
+    } finally {
+      gout.close();
+    }    
+    return bout.toByteArray();
+  }
+  
   /** Take a String as input. If the String is a Y or a y then true else false. 
    *  This is usefull for HTTP request parameters.
    */
@@ -96,6 +109,18 @@ public class Util {
     }
   }
   
+  /** Take a String as input. If the String is null or doesn't have a valid
+   *  long like number format then return 0. Otherwise return the long value. 
+   */  
+  public static long getLong(String val) {
+    if(val == null) return 0;
+    try {
+      return Long.parseLong(val);
+    } catch(Exception e) {
+      return 0;
+    }
+  }
+  
   /** Check if the passed path exists. If parameter create is true
    *  then create the path is it is non existent.
    */
@@ -144,4 +169,31 @@ public class Util {
     
     return jArr;      
   }
-}
\ No newline at end of file
+  
+  /** Same as getErrorJson() but for a successful request that has nothing
+   *  to return but a message, e&#46;g&#46; an acknowledgement&#46; */
+  public static JSONArray getSuccessJson(String message) {
+    final JSONArray jArr = getErrorJson(message);
+    try {
+      jArr.getJSONObject(0).put("status", "success");
+    } catch(Exception e) {
+      System.out.println(e.toString());
+    }
+    return jArr;
+  }
+  
+  /** Can a working connection be checked out of <b>pool</b> right now? */
+  public static boolean isAvailable(ConnectionPool pool) {
+    java.sql.Connection conn = null;
+    try {
+      conn = pool.checkOut(true);
+      return conn != null && conn.isValid(5);
+    } catch(Exception e) {
+      return false;
+    } finally {
+      if(conn != null) {
+        pool.checkIn(conn);
+      }
+    }
+  }
+}
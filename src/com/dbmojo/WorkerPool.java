@@ -0,0 +1,58 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** Shared pool of daemon threads for work a request fans out: fan-out 
+ *  across aliases, parallel and bulk lanes, hedged reads, scatter/gather 
+ *  shards and coalescer flushes&#46; These nest, a fanned out alias can run 
+ *  parallel lanes which can each be hedged, so the thread count grows with
+ *  roughly requests x aliases x lanes x 2, not with maxConcurrentRequests
+ *  alone&#46; The pool is unbounded on purpose since an outer task blocks 
+ *  waiting on the inner ones it submits and a bounded pool could deadlock;
+ *  keep <i>parallel</i>, <i>bulk</i> and fan-out widths modest to keep the
+ *  thread count in check&#46;
+ */
+public class WorkerPool {
+  
+  private static ExecutorService pool = Executors.newCachedThreadPool(
+    new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "DBMojo-worker");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  
+  /** Run <b>task</b> on a worker thread */
+  public static <T> Future<T> submit(Callable<T> task) {
+    return pool.submit(task);
+  }
+  
+  /** The underlying ExecutorService */
+  public static ExecutorService getExecutor() {
+    return pool;
+  }
+}
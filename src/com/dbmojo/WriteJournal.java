@@ -0,0 +1,416 @@
+package com.dbmojo;
+
+/*
+Copyright (C) 2010 Nick Crafford <nickcrafford@gmail.com>
+
+This file is part of dbmojo
+
+dbmojo is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+dbmojo is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with dbmojo.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.json.JSONArray;
+
+/** Memory-mapped ring buffer of update sets that have been acknowledged 
+ *  but not yet written to the database&#46; <br><br>
+ *  Appending only copies the set into the mapping, the file is forced to 
+ *  disk every <i>fsyncInterval</i> milliseconds by a thread of its own&#46;
+ *  Drainer threads take batches of records in journal order, run all the 
+ *  sets of a batch for an alias as one update set and then mark the batch
+ *  drained, which frees its space for new records&#46; Records that don't
+ *  fit before the end of the file wrap around to the beginning&#46; <br><br>
+ *  If the combined set fails the sets are replayed one by one and those 
+ *  that fail are logged and dropped&#46; If the database can't be reached
+ *  nothing is dropped: the drainer keeps the batch where it is and retries
+ *  it until the database is back, and appends are rejected once the 
+ *  journal is full&#46; <br><br>
+ *  At startup the records after the drained offset whose checksum matches
+ *  are replayed, so a set may be written twice if the server died between
+ *  writing a batch and marking it drained&#46; <br><br>
+ *  Layout: <i>[magic][format][tail][drained]</i> header followed by 
+ *  <i>[length][crc32][alias\njson]</i> records&#46; A length of -1 marks
+ *  the point where the records wrap around&#46;
+ */
+public class WriteJournal {
+  
+  private static final int  MAGIC          = 0x444D4A4A;
+  private static final int  FORMAT_VERSION = 2;
+  private static final int  HEADER         = 64;
+  private static final int  TAIL_POS       = 8;
+  private static final int  DRAINED_POS    = 16;
+  private static final int  WRAP           = -1;
+  
+  /** Resolves the executor a journaled set for an alias is replayed with */
+  public interface Target {
+    public QueryExecutor getExecutor(String alias, String json) 
+                                     throws Exception;
+    
+    /** Can the database behind <b>alias</b> be reached right now? */
+    public boolean isAvailable(String alias);
+  }
+  
+  private MappedByteBuffer          buf;
+  private int                       capacity;
+  private int                       tail, claimed, drained, recovered;
+  private TreeMap<Integer, Integer> done = new TreeMap<Integer, Integer>();
+  private volatile boolean          dirty;
+  
+  /** Map <b>path</b> (creating it if necessary) with room for 
+   *  <b>capacity</b> bytes of records and recover any undrained records */
+  public WriteJournal(String path, int capacity) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(path, "rw");
+    try {
+      //Never shrink a journal that may still hold records
+      this.capacity = (int)Math.max(raf.length(), (long)capacity + HEADER);
+      raf.setLength(this.capacity);
+      this.buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 
+                                      this.capacity);
+    } finally {
+      //The mapping stays valid after the file is closed
+      raf.close();
+    }
+    
+    //Version 1 journals never wrapped so they read the same way
+    final int format = this.buf.getInt(4);
+    if(this.buf.getInt(0) == MAGIC && (format == 1 || format == 2)) {
+      this.buf.putInt(4, FORMAT_VERSION);
+      recover();
+    } else {
+      this.buf.putInt(0, MAGIC);
+      this.buf.putInt(4, FORMAT_VERSION);
+      reset();
+    }
+  }
+  
+  //Find the valid records between the drained offset and the tail
+  private void recover() {
+    final long headerTail    = this.buf.getLong(TAIL_POS);
+    final long headerDrained = this.buf.getLong(DRAINED_POS);
+    if(headerDrained < HEADER || headerDrained > this.capacity ||
+       headerTail < HEADER || headerTail > this.capacity) {
+      reset();
+      return;
+    }
+    
+    //Never walk more than one lap, whatever the file holds
+    int  pos    = (int)headerDrained;
+    long walked = 0;
+    while(pos != headerTail && walked < this.capacity) {
+      final int next = wrap(pos);
+      if(next == headerTail) {
+        pos = next;
+        break;
+      }
+      
+      final int len = this.buf.getInt(next);
+      if(len <= 0 || (long)next + 8 + len > this.capacity || 
+         this.buf.getInt(next + 4) != crc(next + 8, len)) {
+        break;
+      }
+      walked += (next < pos ? this.capacity - pos : 0) + 8 + len;
+      pos = next + 8 + len;
+      this.recovered++;
+    }
+    
+    this.drained = (int)headerDrained;
+    this.claimed = this.drained;
+    this.tail    = pos;
+    this.buf.putLong(TAIL_POS, this.tail);
+    this.buf.force();
+  }
+  
+  private void reset() {
+    this.tail    = HEADER;
+    this.claimed = HEADER;
+    this.drained = HEADER;
+    this.buf.putLong(TAIL_POS,    HEADER);
+    this.buf.putLong(DRAINED_POS, HEADER);
+    this.dirty   = true;
+  }
+  
+  //Where the record at pos really starts: records never straddle the end
+  //of the file
+  private int wrap(int pos) {
+    if(pos + 8 > this.capacity || this.buf.getInt(pos) == WRAP) {
+      return HEADER;
+    }
+    return pos;
+  }
+  
+  /** Number of undrained records found at startup */
+  public int getRecovered() {
+    return this.recovered;
+  }
+  
+  /** Append the update set <b>json</b> for <b>alias</b>&#46; Throws if the
+   *  journal doesn't have room for it&#46; */
+  public synchronized void append(String alias, String json) 
+                                  throws IOException {
+    final byte[] payload = (alias + "\n" + json).getBytes("UTF-8");
+    final long   size    = 8 + payload.length;
+    
+    if(this.tail == this.drained && this.tail != HEADER) {
+      reset();
+    }
+    
+    //The tail may never catch up with the drained offset from behind, 
+    //otherwise a full journal would look empty
+    int pos = this.tail;
+    if(this.tail >= this.drained && pos + size > this.capacity) {
+      if(HEADER + size >= this.drained) {
+        throw new IOException("The write journal is full");
+      }
+      if(pos + 4 <= this.capacity) {
+        this.buf.putInt(pos, WRAP);
+      }
+      pos = HEADER;
+    } else if(this.tail < this.drained && pos + size >= this.drained) {
+      throw new IOException("The write journal is full");
+    }
+    
+    final ByteBuffer out = this.buf.duplicate();
+    out.position(pos + 8);
+    out.put(payload);
+    this.buf.putInt(pos + 4, crc(pos + 8, payload.length));
+    this.buf.putInt(pos, payload.length);
+    
+    this.tail = pos + (int)size;
+    this.buf.putLong(TAIL_POS, this.tail);
+    this.dirty = true;
+    notifyAll();
+  }
+  
+  /** Force outstanding appends to disk */
+  public void sync() {
+    if(this.dirty) {
+      this.dirty = false;
+      this.buf.force();
+    }
+  }
+  
+  /** Start <b>drainers</b> threads replaying up to <b>drainBatch</b> 
+   *  records at a time through <b>target</b> and force the journal to disk
+   *  every <b>fsyncInterval</b> milliseconds&#46; Syncing gets a thread of
+   *  its own so slow databases can't hold it up&#46; */
+  public void start(final Target target, int drainers, final int drainBatch,
+                    int fsyncInterval) {
+    final ScheduledExecutorService syncer = 
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "DBMojo-journal-sync");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    syncer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        sync();
+      }
+    }, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+    
+    for(int d=0; d < drainers; d++) {
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          try {
+            while(true) {
+              final Batch batch = claim(drainBatch);
+              
+              //Give an unavailable database a moment before retrying
+              while(!drain(target, batch)) {
+                Thread.sleep(1000);
+              }
+              complete(batch);
+            }
+          } catch(InterruptedException ie) {
+            return;
+          }
+        }
+      }, "DBMojo-journal-drainer");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+  
+  //Take the next records to replay, waiting for some if there are none
+  private synchronized Batch claim(int max) throws InterruptedException {
+    while(this.claimed == this.tail) {
+      wait();
+    }
+    
+    final Batch batch = new Batch(this.claimed);
+    int pos = this.claimed;
+    while(pos != this.tail && batch.aliases.size() < max) {
+      pos = wrap(pos);
+      if(pos == this.tail) {
+        break;
+      }
+      
+      final int    len     = this.buf.getInt(pos);
+      final byte[] payload = new byte[len];
+      final ByteBuffer in  = this.buf.duplicate();
+      in.position(pos + 8);
+      in.get(payload);
+      
+      String record;
+      try {
+        record = new String(payload, "UTF-8");
+      } catch(IOException ioe) {
+        record = "\n[]";
+      }
+      final int split = record.indexOf('\n');
+      batch.aliases.add(record.substring(0, split));
+      batch.sets.add(record.substring(split + 1));
+      pos += 8 + len;
+    }
+    
+    batch.end    = pos;
+    this.claimed = pos;
+    return batch;
+  }
+  
+  //Drained offsets only move forward over contiguous finished batches
+  private synchronized void complete(Batch batch) {
+    this.done.put(batch.start, batch.end);
+    while(this.done.containsKey(this.drained)) {
+      this.drained = this.done.remove(this.drained);
+    }
+    this.buf.putLong(DRAINED_POS, this.drained);
+    this.dirty = true;
+    
+    if(this.drained == this.tail && this.claimed == this.tail) {
+      reset();
+    }
+  }
+  
+  //Replay what is left of a batch. Sets that are written, or that the 
+  //database rejects, are removed from it. Returns false if the database
+  //couldn't be reached and what is left has to be retried
+  private boolean drain(Target target, Batch batch) {
+    final LinkedHashMap<String, ArrayList<String>> byAlias = 
+      new LinkedHashMap<String, ArrayList<String>>();
+    for(int r=0; r < batch.sets.size(); r++) {
+      final String alias = batch.aliases.get(r);
+      if(!byAlias.containsKey(alias)) {
+        byAlias.put(alias, new ArrayList<String>());
+      }
+      byAlias.get(alias).add(batch.sets.get(r));
+    }
+    
+    batch.aliases.clear();
+    batch.sets.clear();
+    for(String alias : byAlias.keySet()) {
+      final ArrayList<String> left = replay(target, alias, 
+                                            byAlias.get(alias));
+      for(String set : left) {
+        batch.aliases.add(alias);
+        batch.sets.add(set);
+      }
+    }
+    
+    return batch.sets.isEmpty();
+  }
+  
+  //Write the sets of one alias. Returns the sets that have to be retried
+  //because the database can't be reached
+  private ArrayList<String> replay(Target target, String alias, 
+                                   ArrayList<String> sets) {
+    //Everything for the alias as a single update set first
+    try {
+      final JSONArray combined = new JSONArray();
+      for(String set : sets) {
+        final JSONArray reqs = new JSONArray(set);
+        for(int s=0; s < reqs.length(); s++) {
+          combined.put(reqs.get(s));
+        }
+      }
+      
+      final String        json = combined.toString();
+      final QueryExecutor ex   = target.getExecutor(alias, json);
+      ex.execute(json, true);
+      if(!ex.hasErrors()) {
+        return new ArrayList<String>();
+      }
+    } catch(Exception e) {
+      if(DebugLog.enabled) {
+        DebugLog.add(this, "Journal batch for '" + alias + "' failed - " + e);
+      }
+    }
+    
+    //The combined set was rolled back, so all of it can still be retried
+    if(!target.isAvailable(alias)) {
+      return sets;
+    }
+    
+    //Then set by set so a bad set only loses itself
+    for(int s=0; s < sets.size(); s++) {
+      final String set = sets.get(s);
+      String err;
+      try {
+        final QueryExecutor ex = target.getExecutor(alias, set);
+        err = ex.execute(set, true);
+        if(!ex.hasErrors()) {
+          continue;
+        }
+      } catch(Exception e) {
+        err = e.toString();
+      }
+      
+      //An outage is no reason to drop anything
+      if(!target.isAvailable(alias)) {
+        return new ArrayList<String>(sets.subList(s, sets.size()));
+      }
+      
+      if(ErrorLog.enabled) {
+        ErrorLog.add(this, "Dropping journaled update set for '" + alias + 
+                           "': " + set + " - " + err, false);
+      }
+    }
+    return new ArrayList<String>();
+  }
+  
+  private int crc(int pos, int len) {
+    final byte[]     bytes = new byte[len];
+    final ByteBuffer in    = this.buf.duplicate();
+    in.position(pos);
+    in.get(bytes);
+    
+    final CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return (int)crc.getValue();
+  }
+  
+  /** Records claimed by a drainer */
+  private static class Batch {
+    final int               start;
+    int                     end;
+    final ArrayList<String> aliases = new ArrayList<String>();
+    final ArrayList<String> sets    = new ArrayList<String>();
+    
+    Batch(int start) {
+      this.start = start;
+    }
+  }
+}
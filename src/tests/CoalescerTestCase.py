@@ -0,0 +1,74 @@
+import unittest
+import jarray
+from java.lang  import String
+from com.dbmojo import JDBCConnectionPool
+from com.dbmojo import QueryExecutor
+from com.dbmojo import QueryExecutorException
+from com.dbmojo import MacroCache
+from com.dbmojo import BatchOptions
+from com.dbmojo import Coalescer
+from org.json   import JSONArray
+
+class CoalescerTestCase(unittest.TestCase):
+    
+        def setUp(self):
+            """ Create a DB connection pool to an embedded Apache Derby 
+            instance with two rows to coalesce updates into. """
+            self.driver = "org.apache.derby.jdbc.EmbeddedDriver"
+            self.pool   = JDBCConnectionPool(self.driver, "jdbc:derby:/testdb;create=true", "", "", 10, 10, 10, "")
+            QueryExecutor(self.pool).execute('[{query:"drop table co_test"}]', True)
+            reqStr      = '[{query:"create table co_test (id int, hits bigint, name varchar(10))"},\
+                            {query:"insert into co_test (id,hits,name) values(1,0,\'\')"},\
+                            {query:"insert into co_test (id,hits,name) values(2,0,\'\')"}]'
+            QueryExecutor(self.pool).execute(reqStr, True)
+            MacroCache.put("$cincr", "update co_test set hits = hits + ? where id = ?")
+            MacroCache.put("$cname", "update co_test set name = ? where id = ?")
+            
+        def values(self, *values):
+            return jarray.array(list(values), String)
+        
+        def selectRows(self, pool):
+            outJson = QueryExecutor(pool).execute('[{query:"select id,hits,name from co_test order by id"}]', False)
+            return JSONArray(outJson).getJSONObject(0).getJSONArray("rows").toString()
+            
+        def testSum(self):
+            """ Make sure sum mode adds up the calls for a key, totals too big
+            for an int included, and refuses values that aren't numbers. """
+            coalescer = Coalescer("$cincr", self.pool, BatchOptions(), True, 0, None, 1000, 1000)
+            coalescer.add(self.values("5", "1"))
+            coalescer.add(self.values("5", "1"))
+            coalescer.add(self.values("3000000000", "2"))
+            coalescer.add(self.values("3000000000", "2"))
+            coalescer.add(self.values("5", "1"))
+            coalescer.flush()
+            assert(self.selectRows(self.pool) == '[["1","15",""],["2","6000000000",""]]')
+            self.assertRaises(QueryExecutorException, coalescer.check, self.values("x", "1"))
+            
+        def testLast(self):
+            """ Make sure last mode keeps only the latest call for a key. """
+            coalescer = Coalescer("$cname", self.pool, BatchOptions(), False, 0, 
+                                  jarray.array([1], 'i'), 1000, 1000)
+            coalescer.add(self.values("a", "1"))
+            coalescer.add(self.values("b", "1"))
+            coalescer.add(self.values("c", "2"))
+            coalescer.flush()
+            assert(self.selectRows(self.pool) == '[["1","0","b"],["2","0","c"]]')
+            
+        def testRestore(self):
+            """ Make sure a flush against a database that can't be reached 
+            puts its rows back, later calls are added to them and the next
+            flush writes the lot. """
+            late      = JDBCConnectionPool(self.driver, "jdbc:derby:memory:colate", "", "", 10, 10, 10, "")
+            coalescer = Coalescer("$cincr", late, BatchOptions(), True, 0, None, 1000, 1000)
+            coalescer.add(self.values("5", "1"))
+            coalescer.add(self.values("5", "1"))
+            coalescer.flush()
+            coalescer.add(self.values("1", "1"))
+            
+            #Bring the database up
+            pool      = JDBCConnectionPool(self.driver, "jdbc:derby:memory:colate;create=true", "", "", 10, 10, 10, "")
+            reqStr    = '[{query:"create table co_test (id int, hits bigint, name varchar(10))"},\
+                          {query:"insert into co_test (id,hits,name) values(1,0,\'\')"}]'
+            QueryExecutor(pool).execute(reqStr, True)
+            coalescer.flush()
+            assert(self.selectRows(pool) == '[["1","11",""]]')
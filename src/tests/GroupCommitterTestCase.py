@@ -0,0 +1,63 @@
+import unittest
+import threading
+from com.dbmojo import JDBCConnectionPool
+from com.dbmojo import QueryExecutor
+from com.dbmojo import GroupCommitter
+from org.json   import JSONArray
+
+class GroupCommitterTestCase(unittest.TestCase):
+    
+        def setUp(self):
+            """ Create a DB connection pool to an embedded Apache Derby 
+            instance and an empty table for the groups to write to. """
+            driver = "org.apache.derby.jdbc.EmbeddedDriver"
+            self.driver = driver
+            self.pool   = JDBCConnectionPool(driver, "jdbc:derby:/testdb;create=true", "", "", 10, 10, 10, "")
+            reqStr      = '[{query:"drop table gc_test"}]'
+            QueryExecutor(self.pool).execute(reqStr, True)
+            reqStr      = '[{query:"create table gc_test (id int, txt varchar(10))"}]'
+            QueryExecutor(self.pool).execute(reqStr, True)
+            
+        def submitAll(self, pool, committer, sets):
+            """ Run every set at once so they land in the same group. Returns
+            [(hasErrors, result)] in the order of sets. """
+            results = [None] * len(sets)
+            def run(n):
+                executor = QueryExecutor(pool)
+                executor.setGroupCommitter(committer)
+                out = executor.execute(sets[n], True)
+                results[n] = (executor.hasErrors(), JSONArray(out).getJSONObject(0))
+            threads = [threading.Thread(target=run, args=(n,)) for n in range(len(sets))]
+            for t in threads:
+                t.start()
+            for t in threads:
+                t.join()
+            return results
+            
+        def testFailedSetIsolated(self):
+            """ Make sure a set that fails inside a group is rolled back to its
+            savepoint, statements before the failure included, while the
+            rest of the group commits. """
+            committer = GroupCommitter(self.pool, 300, 10, 5)
+            sets      = ['[{query:"insert into gc_test (id,txt) values(1,\'a\')"}]',
+                         '[{query:"insert into gc_test (id,txt) values(2,\'b\')"},\
+                           {query:"insert into missing_table (id) values(2)"}]',
+                         '[{query:"insert into gc_test (id,txt) values(3,\'c\')"}]']
+            results   = self.submitAll(self.pool, committer, sets)
+            assert(not results[0][0] and results[0][1].getString("status") == "success")
+            assert(results[1][0] and results[1][1].getString("status") == "error")
+            assert(not results[2][0] and results[2][1].getString("status") == "success")
+            
+            outJson = QueryExecutor(self.pool).execute('[{query:"select id,txt from gc_test order by id"}]', False)
+            assert(JSONArray(outJson).getJSONObject(0).getJSONArray("rows").toString() == '[["1","a"],["3","c"]]')
+            
+        def testGroupFailure(self):
+            """ Make sure every set in a group fails when the group itself 
+            can't be committed. """
+            badPool   = JDBCConnectionPool(self.driver, "jdbc:derby:/nosuchdb", "", "", 10, 10, 10, "")
+            committer = GroupCommitter(badPool, 300, 10, 5)
+            sets      = ['[{query:"insert into gc_test (id,txt) values(%d,\'x\')"}]' % n for n in range(3)]
+            for hasErrors, result in self.submitAll(badPool, committer, sets):
+                assert(hasErrors)
+                assert(result.getString("status") == "error")
+                assert(result.getString("message").startswith("Group commit failed"))
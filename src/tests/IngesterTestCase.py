@@ -0,0 +1,57 @@
+import unittest
+from java.io    import StringReader
+from com.dbmojo import JDBCConnectionPool
+from com.dbmojo import QueryExecutor
+from com.dbmojo import BatchOptions
+from com.dbmojo import Ingester
+from org.json   import JSONArray
+
+class IngesterTestCase(unittest.TestCase):
+    
+        def setUp(self):
+            """ Create a DB connection pool to an embedded Apache
+            Derby instance and an empty table to ingest into. """
+            driver = "org.apache.derby.jdbc.EmbeddedDriver"
+            dsn    = "jdbc:derby:/testdb;create=true"
+            self.pool  = JDBCConnectionPool(driver, dsn, "", "", 10, 10, 10, "")
+            self.query = "insert into ing_test (id,txt) values(?,?)"
+            QueryExecutor(self.pool).execute('[{query:"drop table ing_test"}]', True)
+            QueryExecutor(self.pool).execute('[{query:"create table ing_test (id int, txt varchar(100))"}]', True)
+            
+        def ingest(self, body, header):
+            ingester = Ingester(self.pool, BatchOptions(), self.query, False, header, None)
+            return JSONArray(ingester.ingest(StringReader(body))).getJSONObject(0)
+        
+        def selectRows(self):
+            outJson = QueryExecutor(self.pool).execute('[{query:"select id,txt from ing_test order by id"}]', False)
+            return JSONArray(outJson).getJSONObject(0).getJSONArray("rows").toString()
+            
+        def testCsvQuoting(self):
+            """ Make sure quoted values can hold commas, doubled quotes and 
+            line breaks. """
+            result = self.ingest('1,plain\n2,"with, comma"\n3,"say ""hi"""\n4,"two\nlines"\n', False)
+            assert(result.getString("status") == "success")
+            assert(result.getInt("ingested") == 4)
+            assert(result.getInt("rejected") == 0)
+            assert(self.selectRows() == '[["1","plain"],["2","with, comma"],["3","say \\"hi\\""],["4","two\\nlines"]]')
+            
+        def testCsvLineEndings(self):
+            """ Make sure CRLF and LF line endings can be mixed, blank lines
+            are skipped and the header is only skipped when asked. """
+            result = self.ingest('id,txt\r\n1,a\r\n\r\n2,b\n\n\n3,c', True)
+            assert(result.getInt("ingested") == 3)
+            assert(result.getInt("rejected") == 0)
+            assert(self.selectRows() == '[["1","a"],["2","b"],["3","c"]]')
+            
+        def testCsvRejects(self):
+            """ Make sure bad rows are rejected with the line they started
+            on while the rest of the file is still loaded. """
+            result = self.ingest('1,a\n2,"two\nlines"\n3,"bad"x\nfour,d\n5,e\n', False)
+            assert(result.getString("status") == "success")
+            assert(result.getInt("ingested") == 3)
+            assert(result.getInt("rejected") == 2)
+            rejects = result.getJSONArray("rejects")
+            assert(rejects.getJSONObject(0).getInt("line") == 4)
+            assert(rejects.getJSONObject(0).getString("message") == "Unexpected text after a quoted value")
+            assert(rejects.getJSONObject(1).getInt("line") == 5)
+            assert(self.selectRows() == '[["1","a"],["2","two\\nlines"],["5","e"]]')
@@ -38,4 +38,18 @@ class JDBCConnectionPoolTestCase(unittest.TestCase):
             #Make sure once the connection has been returned to the pool that it is 
             #availablef or use.
             assert(self.pool.getUnavailableConnectionCount() == 0)
-            assert(self.pool.getAvailableConnectionCount() == self.maxObjects)            
\ No newline at end of file
+            assert(self.pool.getAvailableConnectionCount() == self.maxObjects)
+
+        def testCheckInResetsAutoCommit(self):
+            #Make sure a connection checked in mid transaction is rolled back
+            #and put back into auto commit mode
+            pool = JDBCConnectionPool("org.apache.derby.jdbc.EmbeddedDriver", 
+                                      "jdbc:derby:/testdb;create=true", "", "", 1, 
+                                      self.expirationTime, self.connectionTimeout, "")
+            conn = pool.checkOut(True)
+            conn.setAutoCommit(False)
+            pool.checkIn(conn)
+            conn = pool.checkOut(False)
+            assert(conn.getAutoCommit())
+            pool.checkIn(conn)
+
@@ -3,7 +3,9 @@ from com.dbmojo import JDBCConnectionPool
 from com.dbmojo import QueryExecutor
 from com.dbmojo import MacroCache
 from com.dbmojo import DebugLog
+from com.dbmojo import BatchOptions
 from org.json   import JSONArray
+from org.json   import JSONObject
 
 class QueryExecutorTestCase(unittest.TestCase):
     
@@ -28,7 +30,7 @@ class QueryExecutorTestCase(unittest.TestCase):
             
             #Setup dummy table
             reqStr  =  '[{query:"create table qe_test (id int, txt varchar(100))"}]'
-            self.executor.execute(reqStr, True, True)                   
+            self.executor.execute(reqStr, True)                   
 
         def testEscapeRegex(self):
             """ Make sure some of the characters that throw the Java regex
@@ -160,4 +162,98 @@ class QueryExecutorTestCase(unittest.TestCase):
             assert(outJson == '[{"message":"","status":"success"}]')
             
             outQJson = self.executor.execute('[{query:"select * from qe_test order by id"}]',False,True)
-            assert(outQJson == '[{"message":"","cols":["ID","TXT"],"status":"success","types":["INTEGER","VARCHAR"],"rows":[{"ID":"9","TXT":"900"}]}]')                    
+            assert(outQJson == '[{"message":"","cols":["ID","TXT"],"status":"success","types":["INTEGER","VARCHAR"],"rows":[{"ID":"9","TXT":"900"}]}]')
+
+        def resetTable(self):
+            reqStr  =  '[{query:"drop table qe_test"},\
+                         {query:"create table qe_test (id int, txt varchar(100))"}]'
+            QueryExecutor(self.pool).execute(reqStr, True)
+            
+        def selectRows(self):
+            outJson = QueryExecutor(self.pool).execute('[{query:"select id,txt from qe_test order by id"}]', False)
+            return JSONArray(outJson).getJSONObject(0).getJSONArray("rows").toString()
+            
+        def testRewriteBatchedInserts(self):
+            """ Make sure inserts rewritten into multi-row statements still
+            run in order with the updates between them. """
+            self.resetTable()
+            options  = '{batchSize: 3, rewriteBatchedInserts: true, maxBindVariables: 5}'
+            executor = QueryExecutor(self.pool)
+            executor.setBatchOptions(BatchOptions(JSONObject(options), BatchOptions()))
+            insert   = '{query:"insert into qe_test (id,txt) values(?,?)",values:[%d,\'%s\']}'
+            reqStr   = '[' + ','.join([insert % (1, 'a'), insert % (2, 'b'),
+                                       '{query:"update qe_test set txt = \'x\' where id = 1"}',
+                                       insert % (3, 'c'), insert % (4, 'd'), insert % (5, 'e'),
+                                       '{query:"update qe_test set txt = \'y\' where id = 5"}']) + ']'
+            result   = JSONArray(executor.execute(reqStr, True)).getJSONObject(0)
+            assert(result.getString("status") == "success")
+            assert(result.getJSONArray("counts").toString() == '[1,1,1,1,1,1,1]')
+            assert(self.selectRows() == '[["1","x"],["2","b"],["3","c"],["4","d"],["5","y"]]')
+            
+        def testRewriteBindLimit(self):
+            """ Make sure a run of inserts is split so no statement binds 
+            more than maxBindVariables values, and every row lands once. """
+            self.resetTable()
+            options  = '{batchSize: 100, rewriteBatchedInserts: true, maxBindVariables: 5}'
+            executor = QueryExecutor(self.pool)
+            executor.setBatchOptions(BatchOptions(JSONObject(options), BatchOptions()))
+            insert   = '{query:"insert into qe_test (id,txt) values(?,?)",values:[%d,\'%d\']}'
+            reqStr   = '[' + ','.join([insert % (i, i * 100) for i in range(1, 8)]) + ']'
+            result   = JSONArray(executor.execute(reqStr, True)).getJSONObject(0)
+            assert(result.getString("status") == "success")
+            assert(result.getJSONArray("counts").length() == 7)
+            assert(self.selectRows() == '[' + ','.join(['["%d","%d"]' % (i, i * 100) for i in range(1, 8)]) + ']')
+            
+        def testCommitEvery(self):
+            """ Make sure commitEvery keeps the statements committed before a
+            failure and says how many there were. """
+            self.resetTable()
+            executor = QueryExecutor(self.pool)
+            executor.setCommitEvery(2)
+            reqStr   = '[{query:"insert into qe_test (id,txt) values(1,\'a\')"},\
+                         {query:"insert into qe_test (id,txt) values(2,\'b\')"},\
+                         {query:"insert into qe_test (id,txt) values(3,\'c\')"},\
+                         {query:"insert into missing_table (id) values(4)"}]'
+            result   = JSONArray(executor.execute(reqStr, True)).getJSONObject(0)
+            assert(result.getString("status") == "error")
+            assert(result.getInt("committed") == 2)
+            assert(self.selectRows() == '[["1","a"],["2","b"]]')
+        def testSkipErrors(self):
+            """ Make sure onError=skip commits the statements that worked and
+            reports the one that failed. """
+            self.resetTable()
+            executor = QueryExecutor(self.pool)
+            executor.setSkipErrors(True)
+            reqStr   = '[{query:"insert into qe_test (id,txt) values(1,\'a\')"},\
+                         {query:"insert into missing_table (id) values(2)"},\
+                         {query:"insert into qe_test (id,txt) values(3,\'c\')"}]'
+            result   = JSONArray(executor.execute(reqStr, True)).getJSONObject(0)
+            assert(result.getString("status") == "success")
+            assert(result.getJSONArray("counts").toString() == '[1,-3,1]')
+            failed   = result.getJSONArray("failed")
+            assert(failed.length() == 1)
+            assert(failed.getJSONObject(0).getInt("statement") == 1)
+            assert(self.selectRows() == '[["1","a"],["3","c"]]')
+            
+        def testAutoCommitRestored(self):
+            """ Make sure an update set hands its connection back in auto
+            commit mode so a read that reuses it isn't left inside an open
+            transaction. """
+            driver = "org.apache.derby.jdbc.EmbeddedDriver"
+            dsn    = "jdbc:derby:/testdb;create=true"
+            pool   = JDBCConnectionPool(driver, dsn, "", "", 1, 10, 10, "")
+            reqStr = '[{query:"drop table qe_test"},\
+                       {query:"create table qe_test (id int, txt varchar(100))"}]'
+            QueryExecutor(pool).execute(reqStr, True)
+            reqStr = '[{query:"insert into qe_test (id,txt) values(1,\'a\')"},\
+                       {query:"insert into qe_test (id,txt) values(2,\'b\')"}]'
+            result = JSONArray(QueryExecutor(pool).execute(reqStr, True)).getJSONObject(0)
+            assert(result.getString("status") == "success")
+            
+            conn = pool.checkOut(False)
+            assert(conn.getAutoCommit())
+            pool.checkIn(conn)
+            
+            outJson = QueryExecutor(pool).execute('[{query:"select count(*) cnt from qe_test"}]', False)
+            assert(JSONArray(outJson).getJSONObject(0).getJSONArray("rows").toString() == '[["2"]]')
+
@@ -0,0 +1,70 @@
+import unittest
+import jarray
+from java.util  import ArrayList
+from com.dbmojo import JDBCConnectionPool
+from com.dbmojo import ShardedConnectionPool
+from com.dbmojo import QueryExecutor
+from com.dbmojo import ScatterGather
+from org.json   import JSONArray
+
+class ScatterGatherTestCase(unittest.TestCase):
+    
+        def setUp(self):
+            """ Spread six rows over two embedded Apache Derby shards, odd 
+            ids on the first and even ids on the second. """
+            driver = "org.apache.derby.jdbc.EmbeddedDriver"
+            shards = ArrayList()
+            rows   = [[(1, 'a'), (3, 'b'), (5, 'a')], [(2, 'b'), (4, 'a'), (6, 'c')]]
+            for s in range(2):
+                pool   = JDBCConnectionPool(driver, "jdbc:derby:/testshard%d;create=true" % (s + 1),
+                                            "", "", 5, 10, 10, "shard%d" % (s + 1))
+                QueryExecutor(pool).execute('[{query:"drop table sg_test"}]', True)
+                reqStr = ['{query:"create table sg_test (id int, txt varchar(10))"}']
+                for row in rows[s]:
+                    reqStr.append('{query:"insert into sg_test (id,txt) values(%d,\'%s\')"}' % row)
+                QueryExecutor(pool).execute('[' + ','.join(reqStr) + ']', True)
+                shards.add(pool)
+            self.pool = ShardedConnectionPool("sharded", shards, 
+                                              jarray.array([0, 100], 'l'),
+                                              jarray.array([100, 200], 'l'))
+            
+        def gather(self, reqStr):
+            return JSONArray(ScatterGather(self.pool).execute(reqStr)).getJSONObject(0)
+            
+        def testOrderedMerge(self):
+            """ Make sure shard results sorted the same way are k-way merged 
+            in order, including descending columns, and cut at the limit. """
+            result = self.gather('[{query:"select id, txt from sg_test order by id",\
+                                    merge:{orderBy:["ID"], limit:4}}]')
+            assert(result.getString("status") == "success")
+            assert(result.getJSONArray("rows").toString() == '[["1","a"],["2","b"],["3","b"],["4","a"]]')
+            result = self.gather('[{query:"select id, txt from sg_test order by txt, id desc",\
+                                    merge:{orderBy:["TXT", "ID desc"]}}]')
+            assert(result.getJSONArray("rows").toString() == 
+                   '[["5","a"],["4","a"],["1","a"],["3","b"],["2","b"],["6","c"]]')
+            
+        def testAggregate(self):
+            """ Make sure partial counts, sums, mins and maxes from each shard
+            are folded into one row per group. """
+            result = self.gather('[{query:"select txt, count(*) as n, sum(id) as s, min(id) as lo,\
+                                    max(id) as hi from sg_test group by txt",\
+                                    merge:{aggregate:{N:"count", S:"sum", LO:"min", HI:"max"},\
+                                    orderBy:["N desc", "TXT"]}}]')
+            assert(result.getString("status") == "success")
+            assert(result.getJSONArray("cols").toString() == '["TXT","N","S","LO","HI"]')
+            assert(result.getJSONArray("rows").toString() == 
+                   '[["a","3","10","1","5"],["b","2","5","2","3"],["c","1","6","6","6"]]')
+            
+        def testConcatenate(self):
+            """ Make sure rows from every shard come back without a merge and
+            a failing shard fails the statement. """
+            result = self.gather('[{query:"select id from sg_test"}]')
+            ids    = [result.getJSONArray("rows").getJSONArray(r).getString(0) 
+                      for r in range(result.getJSONArray("rows").length())]
+            ids.sort()
+            assert(ids == ["1", "2", "3", "4", "5", "6"])
+            
+            sg     = ScatterGather(self.pool)
+            result = JSONArray(sg.execute('[{query:"select id from missing_table"}]')).getJSONObject(0)
+            assert(result.getString("status") == "error")
+            assert(sg.hasErrors())
@@ -0,0 +1,69 @@
+import unittest
+import jarray
+from java.util  import ArrayList
+from com.dbmojo import JDBCConnectionPool
+from com.dbmojo import ShardedConnectionPool
+from com.dbmojo import QueryExecutorException
+from org.json   import JSONArray
+
+class ShardedConnectionPoolTestCase(unittest.TestCase):
+    
+        def setUp(self):
+            """ Create three member pools. No connections are opened since
+            routing never checks anything out. """
+            driver = "org.apache.derby.jdbc.EmbeddedDriver"
+            self.members = []
+            for s in range(1, 4):
+                self.members.append(JDBCConnectionPool(driver, "jdbc:derby:/testshard%d;create=true" % s,
+                                                       "", "", 5, 10, 10, "shard%d" % s))
+        
+        def shards(self, count):
+            shards = ArrayList()
+            for member in self.members[:count]:
+                shards.add(member)
+            return shards
+            
+        def testHashRouting(self):
+            """ Make sure hashed keys always land on the same member, are 
+            spread over every member and only the keys of a removed member
+            move when the ring shrinks. """
+            three = ShardedConnectionPool("hashed", self.shards(3))
+            two   = ShardedConnectionPool("hashed", self.shards(2))
+            seen  = {}
+            for k in range(1000):
+                key   = "user%d" % k
+                shard = three.getShard(key)
+                assert(shard == three.getShard(key))
+                seen[shard.getAlias()] = seen.get(shard.getAlias(), 0) + 1
+                if shard != self.members[2]:
+                    assert(two.getShard(key) == shard)
+            assert(len(seen) == 3)
+            for count in seen.values():
+                assert(count > 200)
+            
+        def testRangeRouting(self):
+            """ Make sure ranges include from and exclude to, and keys 
+            outside every range or not numeric are refused. """
+            ranged = ShardedConnectionPool("ranged", self.shards(2),
+                                           jarray.array([0, 100], 'l'),
+                                           jarray.array([100, 200], 'l'))
+            assert(ranged.getShard("0")     == self.members[0])
+            assert(ranged.getShard("99")    == self.members[0])
+            assert(ranged.getShard(" 100 ") == self.members[1])
+            assert(ranged.getShard("199")   == self.members[1])
+            self.assertRaises(QueryExecutorException, ranged.getShard, "200")
+            self.assertRaises(QueryExecutorException, ranged.getShard, "abc")
+            
+        def testRequestRouting(self):
+            """ Make sure a set is routed by its statements' shard keys, and 
+            sets that span shards or carry no key are refused. """
+            ranged = ShardedConnectionPool("ranged", self.shards(2),
+                                           jarray.array([0, 100], 'l'),
+                                           jarray.array([100, 200], 'l'))
+            reqs   = JSONArray("[{query:'select 1', shardKey:'5'}, {query:'select 2'}]")
+            assert(ranged.getShard(reqs, None) == self.members[0])
+            assert(ranged.getShard(JSONArray("[{query:'select 1'}]"), "150") == self.members[1])
+            reqs   = JSONArray("[{query:'select 1', shardKey:'5'}, {query:'select 2', shardKey:'150'}]")
+            self.assertRaises(QueryExecutorException, ranged.getShard, reqs, None)
+            self.assertRaises(QueryExecutorException, ranged.getShard, JSONArray("[{query:'select 1'}]"), None)
+            self.assertRaises(QueryExecutorException, ranged.checkOut, False)
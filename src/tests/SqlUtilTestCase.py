@@ -0,0 +1,62 @@
+import unittest
+from com.dbmojo import SqlUtil
+
+class SqlUtilTestCase(unittest.TestCase):
+
+        def testSplitInsert(self):
+            """ Make sure a single row insert of placeholders is split into
+            the statement before VALUES and the row, and anything else is
+            left alone. """
+            parts = SqlUtil.splitInsert("INSERT INTO qe_test (id, txt) VALUES (?, ?)")
+            assert(parts[0] == "INSERT INTO qe_test (id, txt)")
+            assert(parts[1] == "(?, ?)")
+            assert(SqlUtil.splitInsert("insert into qe_test values(?,?,?);")[1] == "(?,?,?)")
+            assert(SqlUtil.splitInsert("INSERT INTO qe_test (id, txt) VALUES (1, ?)") == None)
+            assert(SqlUtil.splitInsert("INSERT INTO qe_test (id, txt) VALUES (?, ?), (?, ?)") == None)
+            assert(SqlUtil.splitInsert("INSERT INTO qe_test SELECT id, txt FROM other") == None)
+
+        def testIsRead(self):
+            """ Make sure reads are told apart from writes, including the
+            SELECTs that lock rows or write with INTO. """
+            assert(SqlUtil.isRead("SELECT 1 FROM SYSIBM.SYSDUMMY1"))
+            assert(SqlUtil.isRead("  /* comment */ (SELECT id FROM qe_test)"))
+            assert(SqlUtil.isRead("WITH x AS (SELECT 1 a FROM t) SELECT a FROM x"))
+            assert(SqlUtil.isRead("VALUES 1"))
+            assert(SqlUtil.isRead("SELECT info, fortune FROM t"))
+            assert(not SqlUtil.isRead("INSERT INTO t VALUES (1)"))
+            assert(not SqlUtil.isRead("WITH x AS (DELETE FROM t RETURNING id) SELECT id FROM x"))
+            assert(not SqlUtil.isRead("SELECT id FROM t WHERE id = 1 FOR UPDATE"))
+            assert(not SqlUtil.isRead("select id from t for share"))
+            assert(not SqlUtil.isRead("SELECT id FROM t LOCK IN SHARE MODE"))
+            assert(not SqlUtil.isRead("SELECT id INTO t2 FROM t"))
+            
+            #Keywords in string literals, comments and quoted names don't count
+            assert(SqlUtil.isRead("SELECT 'move into cart' FROM t"))
+            assert(SqlUtil.isRead("SELECT 'it''s for update' FROM t"))
+            assert(SqlUtil.isRead("SELECT id FROM t -- for update\n"))
+            assert(SqlUtil.isRead("SELECT id /* INTO t2 */ FROM t"))
+            assert(SqlUtil.isRead("SELECT \"into\" FROM t"))
+            assert(SqlUtil.isRead("WITH x AS (SELECT 'delete' d FROM t) SELECT d FROM x"))
+
+        def testGetReadTables(self):
+            """ Make sure every table in FROM lists, JOINs and subqueries 
+            is found without schemas, and FROM in function calls, strings
+            and comments is ignored. """
+            tables = SqlUtil.getReadTables("SELECT * FROM a, b x, \"S\".c WHERE d = 1")
+            assert(list(tables) == ["a", "b", "c"])
+            tables = SqlUtil.getReadTables("SELECT EXTRACT(YEAR FROM dt), TRIM(BOTH ' ' FROM n) FROM app.t")
+            assert(list(tables) == ["t"])
+            tables = SqlUtil.getReadTables("SELECT * FROM (SELECT id FROM a) z, b JOIN c ON z.id = c.id " +
+                                           "WHERE x IN (SELECT 1 FROM d)")
+            assert(list(tables) == ["a", "b", "c", "d"])
+            tables = SqlUtil.getReadTables("SELECT 'FROM x' FROM a -- FROM y\n /* FROM z */")
+            assert(list(tables) == ["a"])
+            assert(list(SqlUtil.getReadTables("VALUES 1")) == [])
+
+        def testGetWriteTable(self):
+            """ Make sure the table written to is found without its schema
+            so it matches the tables found in reads. """
+            assert(SqlUtil.getWriteTable("INSERT INTO app.qe_test VALUES (?)") == "qe_test")
+            assert(SqlUtil.getWriteTable("update \"QE_TEST\" set txt = 'x'") == "qe_test")
+            assert(SqlUtil.getWriteTable("DELETE FROM qe_test") == "qe_test")
+            assert(SqlUtil.getWriteTable("SELECT 1 FROM qe_test") == None)
@@ -4,6 +4,13 @@ from UtilsTestCase              import *
 from QueryExecutorTestCase      import *
 from JDBCConnectionPoolTestCase import *
 from MacroCacheTestCase         import *
+from SqlUtilTestCase            import *
+from IngesterTestCase           import *
+from ShardedConnectionPoolTestCase import *
+from ScatterGatherTestCase      import *
+from GroupCommitterTestCase     import *
+from WriteJournalTestCase       import *
+from CoalescerTestCase          import *
 
 testSuite = unittest.TestSuite()
 
@@ -15,6 +22,7 @@ testSuite.addTest(UtilsTestCase("testGzipString"))
 #JDBCConnectionPool Tests
 testSuite.addTest(JDBCConnectionPoolTestCase("testCheckOut"))
 testSuite.addTest(JDBCConnectionPoolTestCase("testCheckIn"))
+testSuite.addTest(JDBCConnectionPoolTestCase("testCheckInResetsAutoCommit"))
 
 
 #QueryExecutor Tests
@@ -25,6 +33,11 @@ testSuite.addTest(QueryExecutorTestCase("testExecuteQueries"))
 testSuite.addTest(QueryExecutorTestCase("testExecuteUpdates"))
 testSuite.addTest(QueryExecutorTestCase("testSingleUpdate"))
 testSuite.addTest(QueryExecutorTestCase("testSinglePreparedUpdate"))
+testSuite.addTest(QueryExecutorTestCase("testRewriteBatchedInserts"))
+testSuite.addTest(QueryExecutorTestCase("testRewriteBindLimit"))
+testSuite.addTest(QueryExecutorTestCase("testSkipErrors"))
+testSuite.addTest(QueryExecutorTestCase("testAutoCommitRestored"))
+testSuite.addTest(QueryExecutorTestCase("testCommitEvery"))
 
 #MacroCache Tests
 testSuite.addTest(MacroCacheTestCase("testPutGet"))
@@ -32,5 +45,40 @@ testSuite.addTest(MacroCacheTestCase("testPopulate"))
 testSuite.addTest(MacroCacheTestCase("testClear"))
 testSuite.addTest(MacroCacheTestCase("testGetAll"))
 
+#SqlUtil Tests
+testSuite.addTest(SqlUtilTestCase("testSplitInsert"))
+testSuite.addTest(SqlUtilTestCase("testIsRead"))
+testSuite.addTest(SqlUtilTestCase("testGetReadTables"))
+testSuite.addTest(SqlUtilTestCase("testGetWriteTable"))
+
+#Ingester Tests
+testSuite.addTest(IngesterTestCase("testCsvQuoting"))
+testSuite.addTest(IngesterTestCase("testCsvLineEndings"))
+testSuite.addTest(IngesterTestCase("testCsvRejects"))
+
+#ShardedConnectionPool Tests
+testSuite.addTest(ShardedConnectionPoolTestCase("testHashRouting"))
+testSuite.addTest(ShardedConnectionPoolTestCase("testRangeRouting"))
+testSuite.addTest(ShardedConnectionPoolTestCase("testRequestRouting"))
+
+#ScatterGather Tests
+testSuite.addTest(ScatterGatherTestCase("testOrderedMerge"))
+testSuite.addTest(ScatterGatherTestCase("testAggregate"))
+testSuite.addTest(ScatterGatherTestCase("testConcatenate"))
+
+#GroupCommitter Tests
+testSuite.addTest(GroupCommitterTestCase("testFailedSetIsolated"))
+testSuite.addTest(GroupCommitterTestCase("testGroupFailure"))
+
+#WriteJournal Tests
+testSuite.addTest(WriteJournalTestCase("testWrapAndRecover"))
+testSuite.addTest(WriteJournalTestCase("testCorruptRecord"))
+testSuite.addTest(WriteJournalTestCase("testOutOfOrderComplete"))
+
+#Coalescer Tests
+testSuite.addTest(CoalescerTestCase("testSum"))
+testSuite.addTest(CoalescerTestCase("testLast"))
+testSuite.addTest(CoalescerTestCase("testRestore"))
+
 runner = unittest.TextTestRunner()
 runner.run(testSuite)
\ No newline at end of file
@@ -0,0 +1,124 @@
+import os
+import time
+import unittest
+from java.io              import IOException
+from java.io              import RandomAccessFile
+from java.util.concurrent import CountDownLatch
+from com.dbmojo           import JDBCConnectionPool
+from com.dbmojo           import QueryExecutor
+from com.dbmojo           import WriteJournal
+from org.json             import JSONArray
+
+class FlakyTarget(WriteJournal.Target):
+        """ Replays into a real pool until <allowed> sets have been written,
+        then acts as if the database went away. Sets for id 1 wait on 
+        <gate> if one is given. """
+        
+        def __init__(self, pool, allowed, gate=None):
+            self.pool     = pool
+            self.allowed  = allowed
+            self.gate     = gate
+            self.written  = 0
+            self.attempts = 0
+            
+        def getExecutor(self, alias, json):
+            self.attempts += 1
+            if self.gate is not None and json.find("values(1)") >= 0:
+                self.gate.await()
+            if self.written >= self.allowed:
+                raise Exception("Database is down")
+            self.written += 1
+            return QueryExecutor(self.pool)
+            
+        def isAvailable(self, alias):
+            return self.written < self.allowed
+
+class WriteJournalTestCase(unittest.TestCase):
+    
+        def setUp(self):
+            """ Create a DB connection pool to an embedded Apache Derby 
+            instance for drained sets to land in. Records are padded to 100
+            bytes so a 400 byte journal holds exactly four. """
+            driver    = "org.apache.derby.jdbc.EmbeddedDriver"
+            self.pool = JDBCConnectionPool(driver, "jdbc:derby:/testdb;create=true", "", "", 10, 10, 10, "")
+            self.path = "test_journal.bin"
+            QueryExecutor(self.pool).execute('[{query:"drop table wj_test"}]', True)
+            QueryExecutor(self.pool).execute('[{query:"create table wj_test (id int)"}]', True)
+            if os.path.exists(self.path):
+                os.remove(self.path)
+                
+        def tearDown(self):
+            if os.path.exists(self.path):
+                os.remove(self.path)
+            
+        def record(self, id):
+            return ('[{query:"insert into wj_test (id) values(%d)"}]' % id).ljust(90)
+        
+        def waitFor(self, condition):
+            for w in range(250):
+                if condition():
+                    break
+                time.sleep(0.02)
+            time.sleep(0.2)
+        
+        def selectIds(self):
+            outJson = QueryExecutor(self.pool).execute('[{query:"select id from wj_test order by id"}]', False)
+            return JSONArray(outJson).getJSONObject(0).getJSONArray("rows").toString()
+            
+        def testWrapAndRecover(self):
+            """ Make sure records wrap to the start of the file once the 
+            head has drained, appends are refused when the tail would run 
+            into undrained records, an outage holds its records and a 
+            reopened journal recovers and replays every one of them. """
+            journal = WriteJournal(self.path, 400)
+            target  = FlakyTarget(self.pool, 2)
+            journal.start(target, 1, 1, 50)
+            for id in range(1, 5):
+                journal.append("j", self.record(id))
+            
+            #Two records drained, the third is stuck behind the outage
+            self.waitFor(lambda: target.attempts >= 3)
+            journal.append("j", self.record(5))
+            self.assertRaises(IOException, journal.append, "j", self.record(6))
+            
+            reopened = WriteJournal(self.path, 400)
+            assert(reopened.getRecovered() == 3)
+            target   = FlakyTarget(self.pool, 1000)
+            reopened.start(target, 1, 10, 50)
+            self.waitFor(lambda: target.written >= 1)
+            assert(self.selectIds() == '[["1"],["2"],["3"],["4"],["5"]]')
+            
+        def testCorruptRecord(self):
+            """ Make sure recovery stops at the first record whose checksum
+            doesn't match and new records are appended from there. """
+            journal = WriteJournal(self.path, 400)
+            for id in range(1, 4):
+                journal.append("j", self.record(id))
+            journal.sync()
+            
+            raf = RandomAccessFile(self.path, "rw")
+            raf.seek(64 + 100 + 8 + 10)
+            raf.write(ord('X'))
+            raf.close()
+            
+            reopened = WriteJournal(self.path, 400)
+            assert(reopened.getRecovered() == 1)
+            reopened.append("j", self.record(7))
+            assert(WriteJournal(self.path, 400).getRecovered() == 2)
+            
+        def testOutOfOrderComplete(self):
+            """ Make sure a batch finishing before an earlier one doesn't move
+            the drained offset past the earlier one. """
+            journal = WriteJournal(self.path, 400)
+            target  = FlakyTarget(self.pool, 1000, CountDownLatch(1))
+            journal.start(target, 2, 1, 50)
+            journal.append("j", self.record(1))
+            journal.append("j", self.record(2))
+            
+            self.waitFor(lambda: target.written >= 1)
+            assert(WriteJournal(self.path, 400).getRecovered() == 2)
+            
+            target.gate.countDown()
+            self.waitFor(lambda: target.written >= 2)
+            assert(WriteJournal(self.path, 400).getRecovered() == 0)
+            assert(self.selectIds() == '[["1"],["2"]]')